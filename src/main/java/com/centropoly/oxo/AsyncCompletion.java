@@ -0,0 +1,152 @@
+package com.centropoly.oxo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Completes an asynchronous request exactly once. The request may be completed by us, once
+ * its response has been handled or written, or by the container, once it timed out or failed;
+ * whichever comes first. After that, nothing should be written to the response anymore.
+ *
+ * On a timeout or error, the request is left for the container to complete (with an error).
+ * Whatever is still writing the response is told to stop (see #addFinishListener()).
+ *
+ * @author Paul van der Maas
+ */
+final class AsyncCompletion implements AsyncListener
+{
+    private final static Logger logger = LogManager.getLogger(AsyncCompletion.class);
+
+    private final AsyncContext asyncContext;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    // Guarded by this; null once they have been called.
+    private List<Runnable> finishListeners = new ArrayList<>();
+
+    private AsyncCompletion(AsyncContext asyncContext)
+    {
+        this.asyncContext = asyncContext;
+    }
+
+    /**
+     * Start asynchronous processing of the given request.
+     *
+     * @param request
+     * @param timeout the timeout in milliseconds, 0 for none, or a negative number for the container's default
+     * @return
+     */
+    static AsyncCompletion start(HttpServletRequest request, long timeout)
+    {
+        AsyncContext asyncContext = request.startAsync();
+        if (timeout >= 0)
+        {
+            asyncContext.setTimeout(timeout);
+        }
+
+        AsyncCompletion asyncCompletion = new AsyncCompletion(asyncContext);
+        asyncContext.addListener(asyncCompletion);
+        return asyncCompletion;
+    }
+
+    AsyncContext getAsyncContext()
+    {
+        return asyncContext;
+    }
+
+    /**
+     * Check whether the request was completed, timed out or failed.
+     *
+     * @return
+     */
+    boolean isFinished()
+    {
+        return finished.get();
+    }
+
+    /**
+     * Call the given listener once the request has been completed, timed out or failed,
+     * or right away if it has been already.
+     *
+     * @param listener
+     */
+    void addFinishListener(Runnable listener)
+    {
+        synchronized (this)
+        {
+            if (finishListeners != null)
+            {
+                finishListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Complete the request, unless it has been finished already.
+     */
+    void complete()
+    {
+        if (finished.compareAndSet(false, true))
+        {
+            asyncContext.complete();
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event)
+    {
+        finished.set(true);
+        notifyFinishListeners();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event)
+    {
+        if (finished.compareAndSet(false, true))
+        {
+            logger.debug("An asynchronous request timed out.");
+        }
+        notifyFinishListeners();
+    }
+
+    @Override
+    public void onError(AsyncEvent event)
+    {
+        if (finished.compareAndSet(false, true))
+        {
+            logger.debug("An asynchronous request failed.", event.getThrowable());
+        }
+        notifyFinishListeners();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event)
+    {
+    }
+
+    private void notifyFinishListeners()
+    {
+        List<Runnable> listeners;
+        synchronized (this)
+        {
+            listeners = finishListeners;
+            finishListeners = null;
+        }
+
+        if (listeners != null)
+        {
+            for (Runnable listener : listeners)
+            {
+                listener.run();
+            }
+        }
+    }
+}
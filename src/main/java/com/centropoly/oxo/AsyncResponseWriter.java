@@ -0,0 +1,163 @@
+package com.centropoly.oxo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes a response from memory to the client without blocking a thread (see OXOServlet's
+ * async mode). The response is written whenever the client can take more of it, and the
+ * asynchronous request is completed once all of it has been written.
+ *
+ * The response may still be being written itself (a cached response that is being primed by
+ * another request), in which case writing resumes as soon as there is more of it.
+ *
+ * If the request times out or fails first, writing stops and the writer stops waiting for
+ * the response, so that it is not resumed on a request that no longer exists.
+ *
+ * Chunks on the heap are written as they are, without copying them; chunks outside of the heap
+ * are copied piecewise, as servlet output streams only take byte arrays.
+ *
+ * @author Paul van der Maas
+ */
+final class AsyncResponseWriter implements WriteListener
+{
+    private final static Logger logger = LogManager.getLogger(AsyncResponseWriter.class);
+
+    private final static int COPY_BUFFER_SIZE = 16 * 1024;
+
+    private final AsyncCompletion asyncCompletion;
+    private final ServletOutputStream outputStream;
+    private final CachedOutputStream body;
+    private final CachedOutputStream.Cursor cursor;
+
+    // The same instance each time, so that it can be removed again.
+    private final Runnable resumer = this::resume;
+
+    // The part of the response that is being written, if any.
+    private ByteBuffer view = null;
+    private byte[] copyBuffer = null;
+
+    private boolean done = false;
+
+    private AsyncResponseWriter(AsyncCompletion asyncCompletion, ServletOutputStream outputStream, CachedOutputStream body)
+    {
+        this.asyncCompletion = asyncCompletion;
+        this.outputStream = outputStream;
+        this.body = body;
+        this.cursor = body.new Cursor();
+    }
+
+    /**
+     * Start writing the given response asynchronously.
+     *
+     * @param asyncCompletion
+     * @param response
+     * @param body
+     * @throws IOException
+     */
+    static void start(AsyncCompletion asyncCompletion, OXOResponse response, CachedOutputStream body) throws IOException
+    {
+        ServletOutputStream outputStream = response.getOutputStream();
+        AsyncResponseWriter asyncResponseWriter = new AsyncResponseWriter(asyncCompletion, outputStream, body);
+        asyncCompletion.addFinishListener(asyncResponseWriter::stop);
+        outputStream.setWriteListener(asyncResponseWriter);
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException
+    {
+        if (done)
+        {
+            return;
+        }
+
+        while (outputStream.isReady())
+        {
+            if (view == null || !view.hasRemaining())
+            {
+                view = cursor.next();
+                if (view == null)
+                {
+                    if (cursor.isAtEnd())
+                    {
+                        done = true;
+                        asyncCompletion.complete();
+                    }
+                    else if (!body.addOutputListener(cursor, resumer))
+                    {
+                        continue; // More was written in the meantime.
+                    }
+                    return;
+                }
+            }
+
+            if (view.hasArray())
+            {
+                outputStream.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+                view.position(view.limit());
+            }
+            else
+            {
+                if (copyBuffer == null)
+                {
+                    copyBuffer = new byte[COPY_BUFFER_SIZE];
+                }
+                int length = Math.min(copyBuffer.length, view.remaining());
+                view.get(copyBuffer, 0, length);
+                outputStream.write(copyBuffer, 0, length);
+            }
+        }
+    }
+
+    // Called while the body is locked, so continue on a container thread.
+    private void resume()
+    {
+        if (asyncCompletion.isFinished())
+        {
+            return;
+        }
+
+        try
+        {
+            asyncCompletion.getAsyncContext().start(() ->
+            {
+                try
+                {
+                    onWritePossible();
+                }
+                catch (IOException exception)
+                {
+                    onError(exception);
+                }
+            });
+        }
+        catch (IllegalStateException exception)
+        {
+            // Finished in the meantime.
+            logger.debug("The response could not be resumed.", exception);
+        }
+    }
+
+    // Called once the request is finished, which it may be before all of the response was written.
+    private synchronized void stop()
+    {
+        done = true;
+        body.removeOutputListener(resumer);
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable)
+    {
+        logger.debug("The response could not be written asynchronously.", throwable);
+
+        if (!done)
+        {
+            done = true;
+            asyncCompletion.complete();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.centropoly.oxo;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Invalidates cached responses in all caches, that is, of all servlets (each servlet has its
+ * own CachedResponseManager). Call it when content changes, so that responses can be cached
+ * for a long time and still never show outdated content:
+ *
+ * CacheInvalidator.invalidateTag("product:42");
+ *
+ * Servlets register their cache when they are put into service.
+ *
+ * In a cluster, invalidations are broadcast to the other nodes through an InvalidationBus,
+ * if one is set (see #setInvalidationBus()).
+ *
+ * @author Paul van der Maas
+ */
+public final class CacheInvalidator
+{
+    private final static Logger logger = LogManager.getLogger(CacheInvalidator.class);
+
+    private final static CopyOnWriteArrayList<CachedResponseManager> cachedResponseManagers = new CopyOnWriteArrayList<>();
+
+    private static volatile InvalidationBus invalidationBus = null;
+
+    // Do not allow instantiation.
+    private CacheInvalidator()
+    {
+    }
+
+    public static void register(CachedResponseManager cachedResponseManager)
+    {
+        cachedResponseManagers.addIfAbsent(cachedResponseManager);
+    }
+
+    /**
+     * Unregister a cache. Once the last cache is unregistered, the invalidation bus is closed.
+     *
+     * @param cachedResponseManager
+     */
+    public static synchronized void unregister(CachedResponseManager cachedResponseManager)
+    {
+        cachedResponseManagers.remove(cachedResponseManager);
+
+        if (cachedResponseManagers.isEmpty())
+        {
+            setInvalidationBus(null);
+        }
+    }
+
+    /**
+     * Broadcast invalidations to, and receive them from, the other nodes of a cluster through
+     * the given bus. The previous bus, if any, is closed.
+     *
+     * @param invalidationBus the bus, or null to invalidate on this node only
+     */
+    public static synchronized void setInvalidationBus(InvalidationBus invalidationBus)
+    {
+        if (CacheInvalidator.invalidationBus != null)
+        {
+            CacheInvalidator.invalidationBus.close();
+        }
+
+        if (invalidationBus != null)
+        {
+            invalidationBus.subscribe((event) ->
+            {
+                logger.debug("Received the invalidation " + event + ".");
+                apply(event);
+            });
+        }
+
+        CacheInvalidator.invalidationBus = invalidationBus;
+    }
+
+    /**
+     * Set the invalidation bus created by the given supplier, unless a bus has been set
+     * already; the supplier is then not called. For servlets that share a bus.
+     *
+     * @param supplier creates the bus, may return null
+     * @return the bus that is set, if any
+     */
+    public static synchronized InvalidationBus setInvalidationBusIfAbsent(Supplier<InvalidationBus> supplier)
+    {
+        if (invalidationBus == null)
+        {
+            InvalidationBus invalidationBus = supplier.get();
+            if (invalidationBus != null)
+            {
+                setInvalidationBus(invalidationBus);
+            }
+        }
+        return invalidationBus;
+    }
+
+    public static InvalidationBus getInvalidationBus()
+    {
+        return invalidationBus;
+    }
+
+    /**
+     * Invalidate the cached responses with the given cache key (see CacheKeyStrategy).
+     *
+     * @param cacheKey
+     * @return the number of invalidated responses on this node
+     */
+    public static int invalidateKey(String cacheKey)
+    {
+        return invalidate(InvalidationEvent.Type.KEY, cacheKey);
+    }
+
+    /**
+     * Invalidate the cached responses that were tagged with the given cache tag (see Data#getCacheTags()).
+     *
+     * @param tag
+     * @return the number of invalidated responses on this node
+     */
+    public static int invalidateTag(String tag)
+    {
+        return invalidate(InvalidationEvent.Type.TAG, tag);
+    }
+
+    /**
+     * Invalidate the cached responses of the given data class.
+     *
+     * @param dataClass
+     * @return the number of invalidated responses on this node
+     */
+    public static int invalidateDataClass(Class<? extends Data> dataClass)
+    {
+        return invalidate(InvalidationEvent.Type.DATA_CLASS, dataClass.getName());
+    }
+
+    /**
+     * Invalidate the cached responses for paths (servlet path and path info) that start with the given prefix.
+     *
+     * @param pathPrefix
+     * @return the number of invalidated responses on this node
+     */
+    public static int invalidatePrefix(String pathPrefix)
+    {
+        return invalidate(InvalidationEvent.Type.PREFIX, pathPrefix);
+    }
+
+    /**
+     * Invalidate all cached responses.
+     *
+     * @return the number of invalidated responses on this node
+     */
+    public static int invalidateAll()
+    {
+        return invalidate(InvalidationEvent.Type.ALL, null);
+    }
+
+    private static int invalidate(InvalidationEvent.Type type, String value)
+    {
+        if (value == null && type != InvalidationEvent.Type.ALL)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        InvalidationBus invalidationBus = CacheInvalidator.invalidationBus;
+        if (invalidationBus == null)
+        {
+            return apply(new InvalidationEvent(type, value, "local"));
+        }
+
+        InvalidationEvent event = new InvalidationEvent(type, value, invalidationBus.getNodeId());
+        int invalidated = apply(event);
+        invalidationBus.publish(event);
+        return invalidated;
+    }
+
+    // Invalidate the cached responses on this node.
+    private static int apply(InvalidationEvent event)
+    {
+        int invalidated = 0;
+        for (CachedResponseManager cachedResponseManager : cachedResponseManagers)
+        {
+            switch (event.getType())
+            {
+                case KEY:
+                    invalidated += cachedResponseManager.invalidateKey(event.getValue());
+                    break;
+                case TAG:
+                    invalidated += cachedResponseManager.invalidateTag(event.getValue());
+                    break;
+                case DATA_CLASS:
+                    invalidated += cachedResponseManager.invalidateDataClass(event.getValue());
+                    break;
+                case PREFIX:
+                    invalidated += cachedResponseManager.invalidatePrefix(event.getValue());
+                    break;
+                case ALL:
+                    invalidated += cachedResponseManager.invalidateAll();
+                    break;
+            }
+        }
+        return invalidated;
+    }
+}
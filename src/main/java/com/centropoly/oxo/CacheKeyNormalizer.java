@@ -0,0 +1,138 @@
+package com.centropoly.oxo;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes query strings for cache keys, so that requests for the same response share
+ * a cached response even if their URLs differ in ways that do not matter:
+ *
+ * - the order of the parameters (repeated parameters keep their order),
+ * - parameters that do not change the response, such as the tracking parameters that
+ *   are added to links in campaigns (utm_source, fbclid, ...),
+ * - how characters are encoded (a%2Fb and a/b, + and %20).
+ *
+ * Ignored parameters are given by name, and may contain * as a wildcard (utm_*).
+ *
+ * @author Paul van der Maas
+ */
+public class CacheKeyNormalizer
+{
+    public final static List<String> DEFAULT_IGNORED_PARAMETERS = Collections.unmodifiableList(Arrays.asList("utm_*", "fbclid", "gclid"));
+
+    private final List<String> ignoredParameters;
+    private final Pattern ignoredParametersPattern;
+
+    public CacheKeyNormalizer()
+    {
+        this(DEFAULT_IGNORED_PARAMETERS);
+    }
+
+    /**
+     * @param ignoredParameters the names of the parameters to leave out of cache keys, * is a wildcard
+     */
+    public CacheKeyNormalizer(Collection<String> ignoredParameters)
+    {
+        if (ignoredParameters == null)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        this.ignoredParameters = Collections.unmodifiableList(new ArrayList<>(ignoredParameters));
+
+        StringBuilder pattern = new StringBuilder();
+        for (String ignoredParameter : ignoredParameters)
+        {
+            if (pattern.length() > 0)
+            {
+                pattern.append('|');
+            }
+            for (String part : ignoredParameter.split("\\*", -1))
+            {
+                pattern.append(Pattern.quote(part)).append(".*");
+            }
+            pattern.setLength(pattern.length() - 2);
+        }
+        this.ignoredParametersPattern = ignoredParameters.isEmpty() ? null : Pattern.compile(pattern.toString());
+    }
+
+    /**
+     * Normalize the given query string.
+     *
+     * @param queryString the query string, may be null
+     * @return the normalized query string, or null if there was none
+     */
+    public String normalize(String queryString)
+    {
+        if (queryString == null || queryString.isEmpty())
+        {
+            return queryString;
+        }
+
+        List<String[]> parameters = new ArrayList<>();
+        for (String parameter : queryString.split("&"))
+        {
+            if (parameter.isEmpty())
+            {
+                continue;
+            }
+
+            int separator = parameter.indexOf('=');
+            String name = decode((separator != -1) ? parameter.substring(0, separator) : parameter);
+            String value = (separator != -1) ? decode(parameter.substring(separator + 1)) : null;
+
+            if (!isIgnored(name))
+            {
+                parameters.add(new String[] {name, value});
+            }
+        }
+
+        // A stable sort, so that the values of repeated parameters keep their order.
+        parameters.sort((a, b) -> a[0].compareTo(b[0]));
+
+        StringBuilder normalizedQueryString = new StringBuilder(queryString.length());
+        for (String[] parameter : parameters)
+        {
+            if (normalizedQueryString.length() > 0)
+            {
+                normalizedQueryString.append('&');
+            }
+            normalizedQueryString.append(URLEncoder.encode(parameter[0], StandardCharsets.UTF_8));
+            if (parameter[1] != null)
+            {
+                normalizedQueryString.append('=').append(URLEncoder.encode(parameter[1], StandardCharsets.UTF_8));
+            }
+        }
+        return normalizedQueryString.toString();
+    }
+
+    public boolean isIgnored(String parameterName)
+    {
+        return ignoredParametersPattern != null && ignoredParametersPattern.matcher(parameterName).matches();
+    }
+
+    public List<String> getIgnoredParameters()
+    {
+        return ignoredParameters;
+    }
+
+    private static String decode(String value)
+    {
+        try
+        {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8);
+        }
+        catch (IllegalArgumentException exception)
+        {
+            // Malformed, so it cannot be written any other way.
+            return value;
+        }
+    }
+}
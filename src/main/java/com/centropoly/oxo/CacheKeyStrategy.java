@@ -0,0 +1,36 @@
+package com.centropoly.oxo;
+
+import java.util.Collection;
+
+/**
+ * Decides which requests share a cached response. Everything that may change the
+ * response for the same URL (the locale it is rendered in, its output format, request
+ * headers that are taken into account) must be part of the cache key, or one client
+ * gets the response that was cached for another.
+ *
+ * Cache keys are created after #OXOServlet.processRequest(), so the response has been
+ * initialized by then.
+ *
+ * @author Paul van der Maas
+ */
+public interface CacheKeyStrategy
+{
+    /**
+     * Create the key of the cached response to the given request.
+     *
+     * @param request
+     * @param response
+     * @return
+     */
+    String createCacheKey(OXORequest request, OXOResponse response);
+
+    /**
+     * Get the names of the request headers the cache key depends on, so that they can
+     * be listed in the Vary header of the response for caches between us and the client.
+     *
+     * @param request
+     * @param response
+     * @return
+     */
+    Collection<String> getVaryHeaders(OXORequest request, OXOResponse response);
+}
@@ -1,43 +1,570 @@
 package com.centropoly.oxo;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 
+/**
+ * An in-memory buffer for a response that is being cached.
+ *
+ * The response is written to memory only, so rendering it is not slowed down by
+ * any client. Any number of clients can read (stream) the response while it is
+ * being written, and the response is complete only once #complete() is called.
+ * A response that could not be written completely should be #abort()ed, which
+ * also fails the clients that are reading it.
+ *
+ * Clients can read the response without blocking as well (see Cursor), to write it
+ * asynchronously.
+ *
+ * The response is kept in chunks, which are allocated outside of the heap (direct
+ * buffers) if so requested. Large numbers of long-lived cached responses then
+ * do not weigh on the garbage collector. Chunks grow from MINIMUM_CHUNK_SIZE to
+ * MAXIMUM_CHUNK_SIZE, so that small responses stay small and large responses do
+ * not need many chunks.
+ *
+ * @author Paul van der Maas
+ */
 public class CachedOutputStream extends OutputStream
 {
-    OutputStream delegate;
-    ByteArrayOutputStream cache;
+    private final static int MINIMUM_CHUNK_SIZE = 8 * 1024;
+    private final static int MAXIMUM_CHUNK_SIZE = 256 * 1024;
 
-    CachedOutputStream(OutputStream out)
-    {
-        delegate = out;
-        cache = new ByteArrayOutputStream(4096);
-    }
+    private final OXOResponse response;
+    private final boolean direct;
+
+    // Each chunk's position marks how much of it has been written; all but the last are full.
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long size = 0;
+
+    private String contentType = null;
+    private String characterEncoding = null;
+
+    // A hash of the response, for a strong entity tag; null if none is needed.
+    private final MessageDigest digest;
+    private String eTag = null;
+
+    private boolean complete = false;
+    private boolean aborted = false;
+
+    // Called once, when more output is written or the response is completed or aborted.
+    private final List<Runnable> outputListeners = new ArrayList<>();
 
-    public ByteArrayOutputStream getBuffer()
+    /**
+     * @param response the response being cached; its content headers are cached along with it
+     * @param direct whether to keep the response outside of the heap
+     * @param eTag whether the response needs an entity tag; it is hashed as it is written if so
+     */
+    CachedOutputStream(OXOResponse response, boolean direct, boolean eTag)
     {
-        return cache;
+        this.response = response;
+        this.direct = direct;
+
+        if (eTag)
+        {
+            try
+            {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException exception)
+            {
+                // Every Java platform supports SHA-256.
+                throw new IllegalStateException(exception);
+            }
+        }
+        else
+        {
+            this.digest = null;
+        }
     }
 
     @Override
     public void write(int b) throws IOException
     {
-        delegate.write(b);
-        cache.write(b);
+        write(new byte[] {(byte) b}, 0, 1);
     }
 
     @Override
-    public void write(byte b[]) throws IOException
+    public synchronized void write(byte buf[], int offset, int len) throws IOException
     {
-        delegate.write(b);
-        cache.write(b);
+        if (complete || aborted)
+        {
+            throw new IOException("The cached response has already been completed.");
+        }
+
+        if (size == 0 && len > 0)
+        {
+            captureContentHeaders();
+        }
+
+        while (len > 0)
+        {
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining())
+            {
+                int chunkSize = (chunk == null) ? MINIMUM_CHUNK_SIZE : Math.min(chunk.capacity() * 2, MAXIMUM_CHUNK_SIZE);
+                chunk = allocate(chunkSize);
+                chunks.add(chunk);
+            }
+
+            int length = Math.min(len, chunk.remaining());
+            chunk.put(buf, offset, length);
+            if (digest != null)
+            {
+                digest.update(buf, offset, length);
+            }
+
+            size += length;
+            offset += length;
+            len -= length;
+
+            // Readers are woken up per chunk (see #flush() as well).
+            if (!chunk.hasRemaining())
+            {
+                notifyAll();
+                notifyOutputListeners();
+            }
+        }
+    }
+
+    /**
+     * Create a complete cached response from a body that was stored earlier.
+     *
+     * @param body the body from its position up to its limit
+     * @param contentType
+     * @param characterEncoding
+     * @param eTag the entity tag of the body when it was stored
+     */
+    CachedOutputStream(ByteBuffer body, String contentType, String characterEncoding, String eTag)
+    {
+        this.response = null;
+        this.direct = body.isDirect();
+        this.contentType = contentType;
+        this.characterEncoding = characterEncoding;
+        this.digest = null;
+        this.eTag = eTag;
+
+        if (body.hasRemaining())
+        {
+            ByteBuffer chunk = body.slice();
+            chunk.position(chunk.limit());
+            chunks.add(chunk);
+            size = chunk.capacity();
+        }
+        complete = true;
+    }
+
+    private ByteBuffer allocate(int capacity)
+    {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
     }
 
     @Override
-    public void write(byte buf[], int offset, int len) throws IOException
+    public synchronized void flush()
+    {
+        notifyAll();
+        notifyOutputListeners();
+    }
+
+    /**
+     * Mark the response as completely written.
+     */
+    public synchronized void complete()
+    {
+        if (!complete && !aborted)
+        {
+            captureContentHeaders();
+
+            // Do not keep the unused part of the last chunk around.
+            if (!chunks.isEmpty())
+            {
+                ByteBuffer chunk = chunks.get(chunks.size() - 1);
+                if (chunk.hasRemaining())
+                {
+                    ByteBuffer trimmedChunk = allocate(chunk.position());
+                    trimmedChunk.put(chunk.duplicate().flip());
+                    chunks.set(chunks.size() - 1, trimmedChunk);
+                }
+            }
+
+            if (digest != null)
+            {
+                eTag = '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest()) + '"';
+            }
+
+            complete = true;
+            notifyAll();
+            notifyOutputListeners();
+        }
+    }
+
+    /**
+     * Discard the response, it could not be written completely.
+     */
+    public synchronized void abort()
+    {
+        if (!complete)
+        {
+            aborted = true;
+            chunks.clear();
+            notifyAll();
+            notifyOutputListeners();
+        }
+    }
+
+    public synchronized boolean isComplete()
+    {
+        return complete;
+    }
+
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    public synchronized long size()
+    {
+        return size;
+    }
+
+    /**
+     * Get a strong entity tag for the response, a hash of its content.
+     *
+     * @return the quoted entity tag, or null if the response is not complete or needs no entity tag
+     */
+    public synchronized String getETag()
     {
-        delegate.write(buf, offset, len);
-        cache.write(buf, offset, len);
+        return eTag;
+    }
+
+    public synchronized String getContentType()
+    {
+        return contentType;
+    }
+
+    public synchronized String getCharacterEncoding()
+    {
+        return characterEncoding;
+    }
+
+    synchronized void setContentHeaders(String contentType, String characterEncoding)
+    {
+        this.contentType = contentType;
+        this.characterEncoding = characterEncoding;
+    }
+
+    // The content headers are set before any output is written.
+    private void captureContentHeaders()
+    {
+        if (response != null && contentType == null)
+        {
+            contentType = response.getContentType();
+            characterEncoding = response.getCharacterEncoding();
+        }
+    }
+
+    /**
+     * Wait until output has been written or the response has been completed, whichever
+     * comes first.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @return false if the response was aborted, or nothing was written within the timeout
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitOutput(long timeout) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (size == 0 && !complete && !aborted)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            wait(remaining);
+        }
+
+        return !aborted;
+    }
+
+    /**
+     * Write the response to the given output stream, as it is being written if it
+     * is not complete yet.
+     *
+     * @param out
+     * @throws IOException if the response was aborted
+     */
+    public void writeTo(OutputStream out) throws IOException
+    {
+        writeTo(out, 0);
+    }
+
+    /**
+     * Write the response to the given output stream, as it is being written if it
+     * is not complete yet. Chunks outside of the heap are written through a channel,
+     * so they are not copied onto the heap as a whole.
+     *
+     * @param out
+     * @param timeout the maximum time to wait for more output in milliseconds, or 0 to wait indefinitely
+     * @throws IOException if the response was aborted or no more output was written within the timeout
+     */
+    public void writeTo(OutputStream out, long timeout) throws IOException
+    {
+        WritableByteChannel channel = null;
+
+        Cursor cursor = new Cursor();
+        while (true)
+        {
+            ByteBuffer view;
+
+            synchronized (this)
+            {
+                long deadline = System.currentTimeMillis() + timeout;
+                while (!aborted && !cursor.hasOutput() && !complete)
+                {
+                    long remaining = (timeout > 0) ? deadline - System.currentTimeMillis() : 0;
+                    if (timeout > 0 && remaining <= 0)
+                    {
+                        throw new IOException("The cached response is not being written anymore.");
+                    }
+
+                    try
+                    {
+                        wait(remaining);
+                    }
+                    catch (InterruptedException exception)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the cached response.", exception);
+                    }
+                }
+
+                view = cursor.next();
+                if (view == null)
+                {
+                    return; // Complete.
+                }
+            }
+
+            // Written parts of chunks never change, so they can be written without holding the lock.
+            if (view.hasArray())
+            {
+                out.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+            }
+            else
+            {
+                if (channel == null)
+                {
+                    channel = Channels.newChannel(out);
+                }
+                while (view.hasRemaining())
+                {
+                    channel.write(view);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the complete response to the given channel, a file for example.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    void writeTo(WritableByteChannel channel) throws IOException
+    {
+        List<ByteBuffer> views = getViews();
+
+        for (ByteBuffer view : views)
+        {
+            while (view.hasRemaining())
+            {
+                channel.write(view);
+            }
+        }
+    }
+
+    /**
+     * Read the complete response.
+     *
+     * @return
+     * @throws IOException
+     */
+    public InputStream newInputStream() throws IOException
+    {
+        List<ByteBuffer> views = getViews();
+
+        return new InputStream()
+        {
+            private int chunkIndex = 0;
+
+            @Override
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len)
+            {
+                while (chunkIndex < views.size() && !views.get(chunkIndex).hasRemaining())
+                {
+                    chunkIndex++;
+                }
+                if (chunkIndex == views.size())
+                {
+                    return -1;
+                }
+
+                ByteBuffer view = views.get(chunkIndex);
+                int length = Math.min(len, view.remaining());
+                view.get(b, off, length);
+                return length;
+            }
+        };
+    }
+
+    // Read-only views of the chunks of the complete response.
+    private synchronized List<ByteBuffer> getViews() throws IOException
+    {
+        if (!complete)
+        {
+            throw new IOException("The cached response is not complete.");
+        }
+
+        List<ByteBuffer> views = new ArrayList<>();
+        for (ByteBuffer chunk : chunks)
+        {
+            views.add(chunk.asReadOnlyBuffer().flip());
+        }
+        return views;
+    }
+
+    /**
+     * Call the given listener once, as soon as the given cursor can read more of the response,
+     * or the response is completed or aborted. The listener is called while this stream is locked,
+     * so it should only hand off the actual work (to another thread).
+     *
+     * @param cursor
+     * @param listener
+     * @return false if the cursor can read more already, in which case the listener is not called
+     */
+    synchronized boolean addOutputListener(Cursor cursor, Runnable listener)
+    {
+        if (cursor.hasOutput() || complete || aborted)
+        {
+            return false;
+        }
+
+        outputListeners.add(listener);
+        return true;
+    }
+
+    /**
+     * Remove a listener that was added, but has not been called yet.
+     *
+     * @param listener
+     */
+    synchronized void removeOutputListener(Runnable listener)
+    {
+        outputListeners.remove(listener);
+    }
+
+    // Must be called while synchronized.
+    private void notifyOutputListeners()
+    {
+        if (!outputListeners.isEmpty())
+        {
+            List<Runnable> listeners = new ArrayList<>(outputListeners);
+            outputListeners.clear();
+            for (Runnable listener : listeners)
+            {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Reads the response without blocking, as it is being written if it is not complete yet.
+     */
+    final class Cursor
+    {
+        private int chunkIndex = 0;
+        private int chunkOffset = 0;
+
+        /**
+         * Get the next part of the response that has been written.
+         *
+         * @return a view of the part, or null if nothing more has been written (yet, see #isAtEnd())
+         * @throws IOException if the response was aborted
+         */
+        ByteBuffer next() throws IOException
+        {
+            synchronized (CachedOutputStream.this)
+            {
+                if (aborted)
+                {
+                    throw new IOException("The cached response was aborted.");
+                }
+
+                // Move on to the next chunk once this one has been read; chunks are never empty.
+                if (chunkIndex < chunks.size() && chunkOffset == chunks.get(chunkIndex).capacity())
+                {
+                    chunkIndex++;
+                    chunkOffset = 0;
+                }
+
+                if (!isReadable(chunkIndex, chunkOffset))
+                {
+                    return null;
+                }
+
+                ByteBuffer chunk = chunks.get(chunkIndex);
+                ByteBuffer view = chunk.duplicate();
+                view.limit(chunk.position()).position(chunkOffset);
+
+                chunkOffset += view.remaining();
+                return view;
+            }
+        }
+
+        /**
+         * Check whether the whole response has been read.
+         *
+         * @return
+         */
+        boolean isAtEnd()
+        {
+            synchronized (CachedOutputStream.this)
+            {
+                return complete && !hasOutput();
+            }
+        }
+
+        // Must be called while synchronized.
+        private boolean hasOutput()
+        {
+            return isReadable(chunkIndex, chunkOffset);
+        }
+    }
+
+    // Must be called while synchronized.
+    private boolean isReadable(int chunkIndex, int chunkOffset)
+    {
+        if (chunkIndex >= chunks.size())
+        {
+            return false;
+        }
+
+        ByteBuffer chunk = chunks.get(chunkIndex);
+        return chunkOffset < chunk.position() || (chunkOffset == chunk.capacity() && chunkIndex + 1 < chunks.size());
     }
-}
\ No newline at end of file
+}
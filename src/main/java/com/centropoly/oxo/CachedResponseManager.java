@@ -1,34 +1,173 @@
 package com.centropoly.oxo;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.joda.time.DateTime;
 
 /**
  * This class manages caches for the automated caching capabilities in the OXO framework.
  * 
+ * The cache is bounded by the total size (weight) of the cached responses. When it is
+ * full, the least recently used responses are evicted to make room for new ones, but
+ * only if the new response was requested more often recently than the response it
+ * would evict (TinyLFU admission). This way one-off requests cannot push out popular
+ * responses.
+ * 
+ * A response is published and weighed once it has been written completely, see #completeCachedResponse().
+ * 
+ * Optionally, responses evicted from memory are moved to a disk cache (see #setDiskCache()),
+ * from which they are loaded back into memory when they are requested again. The disk
+ * cache survives restarts.
+ * 
+ * Cached responses can be invalidated before they expire, by key, by cache tag (see
+ * Data#getCacheTags()), by data class or by path prefix; see CacheInvalidator as well.
+ * 
  * @author Paul van der Maas
  */
 public final class CachedResponseManager
 {
-    private final HashMap<String, CachedResponse> cache = new HashMap();
+    private final static Logger logger = LogManager.getLogger(CachedResponseManager.class);
+
+    public final static long DEFAULT_MAXIMUM_WEIGHT = 64L * 1024 * 1024;
+
+    // The content coding of compressed variants.
+    final static String GZIP = "gzip";
+
+    // Access ordered, so that the least recently used responses come first.
+    // All access is synchronized on the cache; lookups are short.
+    private final LinkedHashMap<String, CachedResponse> cache = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final FrequencySketch frequencySketch = new FrequencySketch(4096);
+
+    private long weight = 0;
+    private long maximumWeight = DEFAULT_MAXIMUM_WEIGHT;
+
+    // Counts invalidations, so that responses loaded from disk concurrently are not cached after all.
+    private long invalidations = 0;
+
+    // Whether response bodies are kept outside of the heap.
+    private volatile boolean offHeap = false;
+
+    private volatile DiskCache diskCache = null;
+
+    private volatile Compression compression = Compression.NONE;
+
+    private volatile CacheKeyStrategy cacheKeyStrategy = new DefaultCacheKeyStrategy();
+
+    // The request attribute the cache key is kept in; each manager has its own.
+    private final String cacheKeyAttribute = CachedResponseManager.class.getName() + ".cacheKey." + System.identityHashCode(this);
 
-    public CachedResponse getCachedResponse(OXORequest request)
+    // Responses that are being written. They replace the cached response only once complete,
+    // so the previous response can still be served (stale) while it is being rebuilt, and
+    // a partially written response is never served from the cache.
+    private final ConcurrentHashMap<String, CachedResponse> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Get the completely written cached response for the given request, if any.
+     * 
+     * @param request
+     * @return 
+     */
+    public CachedResponse getCachedResponse(OXORequest request, OXOResponse response)
     {
-        String cacheKey = createCacheKey(request);
-        if (cache.containsKey(cacheKey))
+        String cacheKey = createCacheKey(request, response);
+        synchronized (cache)
         {
-            return cache.get(cacheKey);
+            CachedResponse cachedResponse = cache.get(cacheKey);
+            if (cachedResponse != null || diskCache == null)
+            {
+                return cachedResponse;
+            }
         }
-        else
+
+        return loadCachedResponse(cacheKey);
+    }
+
+    // Move a response from the disk cache back into memory.
+    private CachedResponse loadCachedResponse(String cacheKey)
+    {
+        DiskCache diskCache = this.diskCache;
+
+        long invalidations;
+        synchronized (cache)
+        {
+            invalidations = this.invalidations;
+        }
+
+        DiskCache.Entry entry = diskCache.get(cacheKey);
+        if (entry == null)
         {
             return null;
         }
+
+        ByteBuffer body = diskCache.map(entry);
+        if (body == null)
+        {
+            return null;
+        }
+
+        CachedResponse cachedResponse = new CachedResponse();
+        cachedResponse.key = cacheKey;
+        if (GZIP.equals(entry.contentEncoding))
+        {
+            cachedResponse.gzipOutputStream = new CachedOutputStream(body, entry.contentType, entry.characterEncoding, null);
+        }
+        else
+        {
+            cachedResponse.outputStream = new CachedOutputStream(body, entry.contentType, entry.characterEncoding, entry.eTag);
+        }
+        cachedResponse.dateTime = new DateTime(entry.dateTime);
+        cachedResponse.eTag = entry.eTag;
+        cachedResponse.tags = entry.tags;
+        cachedResponse.dataClass = entry.dataClass;
+        cachedResponse.path = entry.path;
+
+        setCompressedVariant(cachedResponse, compress(cachedResponse.outputStream));
+        cachedResponse.weight = cachedResponse.getSize();
+
+        List<CachedResponse> evictedResponses;
+        synchronized (cache)
+        {
+            // Another request may have loaded or cached it in the meantime.
+            CachedResponse currentResponse = cache.get(cacheKey);
+            if (currentResponse != null)
+            {
+                return currentResponse;
+            }
+
+            // It may have been invalidated in the meantime.
+            if (invalidations != this.invalidations)
+            {
+                return null;
+            }
+
+            cache.put(cacheKey, cachedResponse);
+            weight += cachedResponse.weight;
+
+            evictedResponses = evict(null);
+        }
+
+        demote(evictedResponses);
+
+        return cachedResponse;
     }
     
-    public CachedOutputStream getCachedResponseOutputStream(OXORequest request)
+    public CachedOutputStream getCachedResponseOutputStream(OXORequest request, OXOResponse response)
     {
-        CachedResponse cachedResponse = getCachedResponse(request);
+        CachedResponse cachedResponse = getCachedResponse(request, response);
         if (cachedResponse != null)
         {
             return cachedResponse.outputStream;
@@ -39,9 +178,9 @@ public final class CachedResponseManager
         }
     }
 
-    public DateTime getCachedResponseDateTime(OXORequest request)
+    public DateTime getCachedResponseDateTime(OXORequest request, OXOResponse response)
     {
-        CachedResponse cachedResponse = getCachedResponse(request);
+        CachedResponse cachedResponse = getCachedResponse(request, response);
         if (cachedResponse != null)
         {
             return cachedResponse.dateTime;
@@ -52,25 +191,654 @@ public final class CachedResponseManager
         }
     }
 
-    public CachedResponse createCachedResponse(OXORequest request, OXOResponse response) throws IOException
+    /**
+     * Record that the response to the given request was requested. This should be called
+     * once per request that may be served from the cache, whether it is cached or not.
+     * 
+     * @param request 
+     * @param response 
+     */
+    public void recordAccess(OXORequest request, OXOResponse response)
+    {
+        String cacheKey = createCacheKey(request, response);
+        frequencySketch.increment(cacheKey);
+
+        synchronized (cache)
+        {
+            CachedResponse cachedResponse = cache.get(cacheKey);
+            if (cachedResponse != null)
+            {
+                cachedResponse.hits++;
+            }
+        }
+    }
+
+    /**
+     * Get the number of times the cached response for the given request was requested
+     * since it was cached.
+     * 
+     * @param request
+     * @param response
+     * @return 
+     */
+    public int getCachedResponseHits(OXORequest request, OXOResponse response)
+    {
+        CachedResponse cachedResponse = getCachedResponse(request, response);
+        if (cachedResponse != null)
+        {
+            return cachedResponse.getHits();
+        }
+        else
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the response for the given request that is currently being written to the cache, if any.
+     * It can be streamed to other clients while it is being written.
+     * 
+     * @param request
+     * @param response
+     * @return 
+     */
+    public CachedResponse getPendingCachedResponse(OXORequest request, OXOResponse response)
+    {
+        return pending.get(createCacheKey(request, response));
+    }
+
+    /**
+     * Start caching the response to the given request. Only one response per cache key
+     * is written at a time, so that when a popular response expires it is not rebuilt by
+     * every request for it at once. Other requests can stream the pending response instead,
+     * see #getPendingCachedResponse().
+     * 
+     * The caller must call either #completeCachedResponse() or #abortCachedResponse() when done.
+     * 
+     * @param request
+     * @param response
+     * @return the new cached response, or null if a response for the request is already being written
+     */
+    public CachedResponse createCachedResponse(OXORequest request, OXOResponse response)
     {
         CachedResponse cachedResponse = new CachedResponse();
-        cachedResponse.outputStream = new CachedOutputStream(response.getOutputStream());
+        cachedResponse.key = createCacheKey(request, response);
+        cachedResponse.outputStream = new CachedOutputStream(response, offHeap, true);
         cachedResponse.dateTime = new DateTime();
+        cachedResponse.dataClass = (response.getData() != null) ? response.getData().getClass().getName() : null;
+        cachedResponse.path = getPath(request);
 
-        cache.put(createCacheKey(request), cachedResponse);
-        
-        return cachedResponse;
+        return (pending.putIfAbsent(cachedResponse.key, cachedResponse) == null) ? cachedResponse : null;
+    }
+
+    /**
+     * Replace the cached response with the one written to the given output stream now that it
+     * has been written completely, and evict responses if the cache has grown too large.
+     * The response is not cached if it was invalidated while it was being written.
+     * 
+     * @param request
+     * @param response
+     * @param outputStream 
+     */
+    public void completeCachedResponse(OXORequest request, OXOResponse response, CachedOutputStream outputStream)
+    {
+        outputStream.complete();
+
+        String cacheKey = createCacheKey(request, response);
+        CachedResponse cachedResponse = pending.get(cacheKey);
+        if (cachedResponse != null && cachedResponse.outputStream == outputStream)
+        {
+            // Whatever is on disk is outdated now.
+            if (diskCache != null)
+            {
+                diskCache.remove(cacheKey);
+            }
+
+            cachedResponse.eTag = outputStream.getETag();
+            if (response.getData() != null && response.getData().getCacheTags() != null)
+            {
+                cachedResponse.tags = new HashSet<>(response.getData().getCacheTags());
+            }
+            CachedOutputStream gzipOutputStream = compress(outputStream);
+
+            List<CachedResponse> evictedResponses;
+            synchronized (cache)
+            {
+                pending.remove(cacheKey);
+
+                // It may have been built from data that has changed since, and, like responses that
+                // have exceptions up front (see OXOServlet#useCache()), responses that failed to build
+                // in part are not cached; requests that are waiting for it still get it.
+                if (cachedResponse.invalidated || response.hasExceptions())
+                {
+                    return;
+                }
+
+                // Only now that it is no longer pending may the uncompressed variant be dropped,
+                // requests that got it while it was pending may still be streaming it.
+                setCompressedVariant(cachedResponse, gzipOutputStream);
+                cachedResponse.weight = cachedResponse.getSize();
+
+                CachedResponse replacedResponse = cache.put(cacheKey, cachedResponse);
+                if (replacedResponse != null)
+                {
+                    weight -= replacedResponse.weight;
+                }
+                weight += cachedResponse.weight;
+
+                evictedResponses = evict(cachedResponse);
+            }
+
+            demote(evictedResponses);
+        }
+    }
+
+    /**
+     * Discard the cached response written to the given output stream, because it
+     * could not be written completely. The previously cached response, if any, is kept.
+     * 
+     * @param request
+     * @param response
+     * @param outputStream 
+     */
+    public void abortCachedResponse(OXORequest request, OXOResponse response, CachedOutputStream outputStream)
+    {
+        outputStream.abort();
+
+        String cacheKey = createCacheKey(request, response);
+        CachedResponse cachedResponse = pending.get(cacheKey);
+        if (cachedResponse != null && cachedResponse.outputStream == outputStream)
+        {
+            pending.remove(cacheKey, cachedResponse);
+        }
+    }
+
+    /**
+     * Invalidate the cached response with the given cache key (see CacheKeyStrategy).
+     * 
+     * @param cacheKey
+     * @return the number of invalidated responses, in memory and on disk
+     */
+    public int invalidateKey(String cacheKey)
+    {
+        return invalidate((key, tags, dataClass, path) -> key.equals(cacheKey), false);
+    }
+
+    /**
+     * Invalidate the cached responses that were tagged with the given cache tag (see Data#getCacheTags()).
+     * As the tags of responses that are being written are not known yet, those are all invalidated.
+     * 
+     * @param tag
+     * @return the number of invalidated responses, in memory and on disk
+     */
+    public int invalidateTag(String tag)
+    {
+        return invalidate((key, tags, dataClass, path) -> tags.contains(tag), true);
+    }
+
+    /**
+     * Invalidate the cached responses of the given data class.
+     * 
+     * @param dataClass
+     * @return the number of invalidated responses, in memory and on disk
+     */
+    public int invalidateDataClass(Class<? extends Data> dataClass)
+    {
+        return invalidateDataClass(dataClass.getName());
+    }
+
+    /**
+     * Invalidate the cached responses of the data class with the given name.
+     * 
+     * @param dataClassName
+     * @return the number of invalidated responses, in memory and on disk
+     */
+    public int invalidateDataClass(String dataClassName)
+    {
+        return invalidate((key, tags, dataClass, path) -> dataClassName.equals(dataClass), false);
+    }
+
+    /**
+     * Invalidate the cached responses for paths (servlet path and path info) that start with
+     * the given prefix, for example "/catalog/".
+     * 
+     * @param pathPrefix
+     * @return the number of invalidated responses, in memory and on disk
+     */
+    public int invalidatePrefix(String pathPrefix)
+    {
+        return invalidate((key, tags, dataClass, path) -> path != null && path.startsWith(pathPrefix), false);
+    }
+
+    /**
+     * Invalidate all cached responses.
+     * 
+     * @return the number of invalidated responses, in memory and on disk
+     */
+    public int invalidateAll()
+    {
+        return invalidate((key, tags, dataClass, path) -> true, true);
+    }
+
+    private int invalidate(Matcher matcher, boolean allPending)
+    {
+        int invalidated = 0;
+
+        synchronized (cache)
+        {
+            invalidations++;
+
+            for (Iterator<CachedResponse> iterator = cache.values().iterator(); iterator.hasNext();)
+            {
+                CachedResponse cachedResponse = iterator.next();
+                if (matcher.matches(cachedResponse.key, cachedResponse.tags, cachedResponse.dataClass, cachedResponse.path))
+                {
+                    iterator.remove();
+                    weight -= cachedResponse.weight;
+                    invalidated++;
+                }
+            }
+
+            // Responses that are being written are still streamed to the requests waiting
+            // for them, but they are not cached. Checked by #completeCachedResponse() while synchronized.
+            for (CachedResponse cachedResponse : pending.values())
+            {
+                if (allPending || matcher.matches(cachedResponse.key, cachedResponse.tags, cachedResponse.dataClass, cachedResponse.path))
+                {
+                    cachedResponse.invalidated = true;
+                }
+            }
+        }
+
+        DiskCache diskCache = this.diskCache;
+        if (diskCache != null)
+        {
+            invalidated += diskCache.removeIf((entry) -> matcher.matches(entry.key, entry.tags, entry.dataClass, entry.path));
+
+            // Responses that were being loaded from disk in the meantime are not cached either.
+            synchronized (cache)
+            {
+                invalidations++;
+            }
+        }
+
+        logger.debug("Invalidated " + invalidated + " cached responses.");
+
+        return invalidated;
+    }
+
+    /**
+     * Set the maximum total size, in bytes, of the cached responses.
+     * 
+     * @param maximumWeight 
+     */
+    public void setMaximumWeight(long maximumWeight)
+    {
+        if (maximumWeight < 0)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        List<CachedResponse> evictedResponses;
+        synchronized (cache)
+        {
+            this.maximumWeight = maximumWeight;
+
+            evictedResponses = evict(null);
+        }
+
+        demote(evictedResponses);
+    }
+
+    /**
+     * Move responses that are evicted from memory to a disk cache in the given directory,
+     * which will hold at most the given number of bytes. Responses in the directory that
+     * were cached earlier, before a restart for example, are loaded when first requested.
+     * 
+     * @param directory the directory, or null for no disk cache
+     * @param maximumSize 
+     */
+    public void setDiskCache(File directory, long maximumSize)
+    {
+        if (diskCache != null)
+        {
+            diskCache.close();
+        }
+
+        diskCache = (directory != null) ? new DiskCache(directory, maximumSize) : null;
+    }
+
+    /**
+     * Release the resources held by the cache. Responses in memory are moved to the
+     * disk cache, if any, so that they are still available after a restart.
+     */
+    public void close()
+    {
+        if (diskCache != null)
+        {
+            List<CachedResponse> cachedResponses;
+            synchronized (cache)
+            {
+                cachedResponses = new ArrayList<>(cache.values());
+            }
+
+            demote(cachedResponses);
+
+            diskCache.close();
+        }
+    }
+
+    // Must not be called while synchronized on the cache, writing to disk takes time.
+    private void demote(List<CachedResponse> evictedResponses)
+    {
+        DiskCache diskCache = this.diskCache;
+        if (diskCache != null)
+        {
+            for (CachedResponse evictedResponse : evictedResponses)
+            {
+                // Only one variant is stored; a compressed variant is recreated when the response is loaded again.
+                CachedOutputStream outputStream = evictedResponse.outputStream;
+                if (outputStream != null)
+                {
+                    diskCache.put(evictedResponse.key, outputStream, null, evictedResponse.eTag, evictedResponse.dateTime.getMillis(), evictedResponse.tags, evictedResponse.dataClass, evictedResponse.path);
+                }
+                else
+                {
+                    diskCache.put(evictedResponse.key, evictedResponse.gzipOutputStream, GZIP, evictedResponse.eTag, evictedResponse.dateTime.getMillis(), evictedResponse.tags, evictedResponse.dataClass, evictedResponse.path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the compressed variant of a completely written response, as configured by
+     * #setCompression(). Compressed variants that are not smaller than the uncompressed
+     * response are not kept.
+     * 
+     * @return the compressed variant, or null if there is none to keep
+     */
+    private CachedOutputStream compress(CachedOutputStream outputStream)
+    {
+        if (compression == Compression.NONE || outputStream == null)
+        {
+            return null;
+        }
+
+        // Its entity tag is derived from that of the uncompressed response.
+        CachedOutputStream gzipOutputStream = new CachedOutputStream(null, offHeap, false);
+        gzipOutputStream.setContentHeaders(outputStream.getContentType(), outputStream.getCharacterEncoding());
+
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipOutputStream, 8192))
+        {
+            outputStream.writeTo(out);
+            out.finish();
+            gzipOutputStream.complete();
+        }
+        catch (IOException exception)
+        {
+            // Cannot happen, everything is in memory.
+            throw new IllegalStateException(exception);
+        }
+
+        return (gzipOutputStream.size() < outputStream.size()) ? gzipOutputStream : null;
+    }
+
+    /**
+     * Keep the given compressed variant of a response that is not pending (anymore), and drop
+     * the uncompressed one if so configured.
+     */
+    private void setCompressedVariant(CachedResponse cachedResponse, CachedOutputStream gzipOutputStream)
+    {
+        if (gzipOutputStream != null)
+        {
+            cachedResponse.gzipOutputStream = gzipOutputStream;
+            if (compression == Compression.GZIP_ONLY)
+            {
+                cachedResponse.outputStream = null;
+            }
+        }
+    }
+
+    /**
+     * Keep a gzip compressed variant of cached responses, to send to clients that accept it
+     * without compressing the response for every request. With GZIP_ONLY, only the compressed
+     * variant is kept (which takes much less memory) and it is decompressed for clients that
+     * do not accept it.
+     * 
+     * @param compression 
+     */
+    public void setCompression(Compression compression)
+    {
+        if (compression == null)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        this.compression = compression;
+    }
+
+    public Compression getCompression()
+    {
+        return compression;
+    }
+
+    /**
+     * Keep the bodies of responses that are cached from now on outside of the heap (in direct
+     * buffers), so that they do not add to garbage collection pauses. The maximum amount of
+     * direct memory of the JVM (-XX:MaxDirectMemorySize) must allow for the maximum weight.
+     * 
+     * @param offHeap 
+     */
+    public void setOffHeap(boolean offHeap)
+    {
+        this.offHeap = offHeap;
+    }
+
+    public boolean isOffHeap()
+    {
+        return offHeap;
+    }
+
+    /**
+     * Get the total size, in bytes, of the cached responses.
+     * 
+     * @return 
+     */
+    public long getWeight()
+    {
+        synchronized (cache)
+        {
+            return weight;
+        }
+    }
+
+    public int size()
+    {
+        synchronized (cache)
+        {
+            return cache.size();
+        }
+    }
+
+    // Must be called while synchronized on the cache. Returns the evicted responses.
+    private List<CachedResponse> evict(CachedResponse candidate)
+    {
+        List<CachedResponse> evictedResponses = new ArrayList<>();
+
+        Iterator<CachedResponse> iterator = cache.values().iterator();
+        while (weight > maximumWeight && iterator.hasNext())
+        {
+            CachedResponse victim = iterator.next();
+            if (victim == candidate)
+            {
+                continue;
+            }
+
+            // Only evict the victim if the candidate is likely to be requested more often.
+            if (candidate != null && frequencySketch.frequency(candidate.key) <= frequencySketch.frequency(victim.key))
+            {
+                break;
+            }
+
+            iterator.remove();
+            weight -= victim.weight;
+            evictedResponses.add(victim);
+        }
+
+        // If there still is not enough room, the candidate is not admitted.
+        if (weight > maximumWeight && candidate != null)
+        {
+            cache.remove(candidate.key);
+            weight -= candidate.weight;
+            evictedResponses.add(candidate);
+        }
+
+        return evictedResponses;
+    }
+
+    /**
+     * Decide which requests share a cached response, see CacheKeyStrategy.
+     * 
+     * @param cacheKeyStrategy 
+     */
+    public void setCacheKeyStrategy(CacheKeyStrategy cacheKeyStrategy)
+    {
+        if (cacheKeyStrategy == null)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        this.cacheKeyStrategy = cacheKeyStrategy;
+    }
+
+    public CacheKeyStrategy getCacheKeyStrategy()
+    {
+        return cacheKeyStrategy;
+    }
+
+    /**
+     * Get the names of the request headers the cached response to the given request depends on.
+     * 
+     * @param request
+     * @param response
+     * @return 
+     */
+    public Collection<String> getVaryHeaders(OXORequest request, OXOResponse response)
+    {
+        return cacheKeyStrategy.getVaryHeaders(request, response);
     }
 
-    protected String createCacheKey(OXORequest request)
+    /**
+     * Create the cache key for the given request. It is created once per request and kept
+     * as a request attribute, which is copied along with detached requests (see DetachedRequest),
+     * so that a response rebuilt in the background replaces the cached response it was rebuilt for.
+     */
+    String createCacheKey(OXORequest request, OXOResponse response)
     {
-        return request.getQueryString() + ';' + request.getPathInfo() + ';' + request.getServletPath();
+        String cacheKey = (String) request.getAttribute(cacheKeyAttribute);
+        if (cacheKey == null)
+        {
+            cacheKey = cacheKeyStrategy.createCacheKey(request, response);
+            request.setAttribute(cacheKeyAttribute, cacheKey);
+        }
+        return cacheKey;
     }
     
+    // The path that responses can be invalidated by, see #invalidatePrefix().
+    private static String getPath(OXORequest request)
+    {
+        return request.getServletPath() + ((request.getPathInfo() != null) ? request.getPathInfo() : "");
+    }
+
+    // Matches cached responses, in memory or on disk, for invalidation.
+    private interface Matcher
+    {
+        boolean matches(String key, Set<String> tags, String dataClass, String path);
+    }
+
     public class CachedResponse
     {
-        CachedOutputStream outputStream;
+        String key;
+        // The response and its compressed variant; either may be null once complete, but not both.
+        // The uncompressed variant is never null while the response is pending. Read them once.
+        volatile CachedOutputStream outputStream;
+        volatile CachedOutputStream gzipOutputStream;
         DateTime dateTime;
+        // The strong entity tag of the (uncompressed) response.
+        volatile String eTag;
+        long weight = 0;
+        int hits = 0;
+        // What the response can be invalidated by.
+        Set<String> tags = Collections.emptySet();
+        String dataClass;
+        String path;
+        // Set if the response was invalidated while it was being written; guarded by the cache.
+        boolean invalidated = false;
+
+        /**
+         * Get the strong entity tag of the response, or of its gzip compressed variant.
+         * Each content coding needs its own entity tag.
+         */
+        String getETag(boolean gzip)
+        {
+            String eTag = this.eTag;
+            if (eTag == null || !gzip)
+            {
+                return eTag;
+            }
+            else
+            {
+                return eTag.substring(0, eTag.length() - 1) + "-" + GZIP + '"';
+            }
+        }
+
+        /**
+         * Get the number of times the response was requested since it was cached.
+         */
+        int getHits()
+        {
+            synchronized (cache)
+            {
+                return hits;
+            }
+        }
+
+        long getSize()
+        {
+            CachedOutputStream outputStream = this.outputStream;
+            CachedOutputStream gzipOutputStream = this.gzipOutputStream;
+            return ((outputStream != null) ? outputStream.size() : 0) + ((gzipOutputStream != null) ? gzipOutputStream.size() : 0);
+        }
+    }
+
+    public enum Compression
+    {
+        NONE ("none"),
+        GZIP ("gzip"),
+        GZIP_ONLY ("gzip-only");
+
+        private final String value;
+
+        Compression(String value)
+        {
+            this.value = value;
+        }
+
+        public static Compression fromString(String value)
+        {
+            for (Compression compression : values())
+            {
+                if (compression.value.equalsIgnoreCase(value.trim()))
+                {
+                    return compression;
+                }
+            }
+            throw new IllegalArgumentException("Unknown cache compression: " + value);
+        }
+
+        @Override
+        public String toString() {
+            return this.value;
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,10 @@
 package com.centropoly.oxo;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
 
@@ -9,6 +14,11 @@ import org.joda.time.Duration;
  * 
  * If neither of the cache control methods is implemented, caching is effectively turned off.
  * 
+ * Independent parts of the data, child data objects or anything loaded from a backend, can be
+ * built concurrently (see #buildConcurrently() and #loadAsync()), so that building the data
+ * takes as long as its slowest part instead of as long as all of its parts together. The
+ * framework waits for them before the response is written.
+ * 
  * @author Paul van der Maas
  */
 public abstract class Data
@@ -23,6 +33,78 @@ public abstract class Data
      */
     public abstract void build(OXORequest request, OXOResponse response) throws Exception;
 
+    /**
+     * Build the given child data object concurrently, for example:
+     * 
+     * this.sidebar = buildConcurrently(new SidebarData());
+     * 
+     * May only be called while the data is being built. If building the child fails, the
+     * exception is added to the response, which is then not cached.
+     * 
+     * @param <T>
+     * @param child
+     * @return The child, which must not be used until the response is written.
+     */
+    protected final <T extends Data> T buildConcurrently(T child)
+    {
+        OXORequest request = OXOContext.getRequest();
+        OXOResponse response = getBuildingResponse();
+
+        response.fork(() ->
+        {
+            child.build(request, response);
+            return child;
+        });
+
+        return child;
+    }
+
+    /**
+     * Load something concurrently, for example:
+     * 
+     * loadAsync(() -> productService.getProducts(), (products) -> this.products = products);
+     * 
+     * May only be called while the data is being built. If loading fails, the exception is
+     * added to the response, which is then not cached.
+     * 
+     * @param <V>
+     * @param loader Loads the value.
+     * @param consumer Receives the loaded value, on the thread that loaded it.
+     * @return The result of the loader.
+     */
+    protected final <V> Future<V> loadAsync(Callable<V> loader, Consumer<? super V> consumer)
+    {
+        return getBuildingResponse().fork(() ->
+        {
+            V value = loader.call();
+            consumer.accept(value);
+            return value;
+        });
+    }
+
+    /**
+     * Load something concurrently. The result can be retrieved from the returned future,
+     * which blocks until it has been loaded; see #loadAsync(Callable, Consumer) as well.
+     * 
+     * @param <V>
+     * @param loader Loads the value.
+     * @return The result of the loader.
+     */
+    protected final <V> Future<V> loadAsync(Callable<V> loader)
+    {
+        return getBuildingResponse().fork(loader);
+    }
+
+    private static OXOResponse getBuildingResponse()
+    {
+        OXOResponse response = OXOContext.getResponse();
+        if (response == null)
+        {
+            throw new IllegalStateException("Data can only be built concurrently while a response is being built.");
+        }
+        return response;
+    }
+
     /**
      * Override this method to take advantage of automated caching by specifying
      * when the data was last modified.
@@ -48,4 +130,20 @@ public abstract class Data
     {
         return null;
     }
+
+    /**
+     * Override this method to tag the cached response with what it shows, for example
+     * "product:42", so that it can be invalidated when that changes (see CacheInvalidator).
+     * Responses can then be cached much longer than their content is guaranteed to be current.
+     * 
+     * This method is called once the data has been built.
+     * 
+     * By default, the return value is an empty collection.
+     * 
+     * @return Cache tags.
+     */
+    public Collection<String> getCacheTags()
+    {
+        return Collections.emptySet();
+    }
 }
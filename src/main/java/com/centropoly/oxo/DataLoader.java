@@ -0,0 +1,229 @@
+package com.centropoly.oxo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Loads values by key in batches, for the duration of a request (see OXORequest#getDataLoader()).
+ * Instead of each data object querying for what it needs on its own, which easily adds up to
+ * hundreds of small queries per page (or the same query over and over), data objects ask the
+ * loader for what they need while the data is being built:
+ *
+ * request.getDataLoader("products", productService::getProducts).load(productId).thenAccept((product) -> this.product = product);
+ *
+ * Once the data has been built (and after each round of concurrently built parts, see
+ * Data#buildConcurrently()), the framework dispatches the keys that were asked for to the
+ * batch function, as few times as possible: each key once, in batches of at most the maximum
+ * batch size. Values asked for by the callbacks are loaded in the next round, until nothing
+ * is left to load.
+ *
+ * Values, and failures, are memoized for the rest of the request, so asking for the same key
+ * again does not load it again.
+ *
+ * Values that are needed right away can be gotten with #get(), which dispatches whatever has
+ * been asked for so far, at the cost of a batch of its own.
+ *
+ * @author Paul van der Maas
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+public final class DataLoader<K, V>
+{
+    /**
+     * Loads the values of a batch of keys.
+     *
+     * @param <K>
+     * @param <V>
+     */
+    @FunctionalInterface
+    public interface BatchFunction<K, V>
+    {
+        /**
+         * Load the values of the given keys.
+         *
+         * @param keys
+         * @return The values by key; keys without a value are loaded as null.
+         * @throws Exception
+         */
+        Map<K, V> load(Set<K> keys) throws Exception;
+    }
+
+    private final BatchFunction<K, V> batchFunction;
+    private final int maximumBatchSize;
+
+    // Guarded by this.
+    private final Map<K, CompletableFuture<V>> futures = new HashMap<>();
+    private final Set<K> queue = new LinkedHashSet<>();
+
+    /**
+     * @param batchFunction
+     * @param maximumBatchSize the maximum number of keys to load at once
+     */
+    public DataLoader(BatchFunction<K, V> batchFunction, int maximumBatchSize)
+    {
+        if (batchFunction == null || maximumBatchSize < 1)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        this.batchFunction = batchFunction;
+        this.maximumBatchSize = maximumBatchSize;
+    }
+
+    /**
+     * Ask for the value of the given key. It is loaded when the loader is dispatched.
+     *
+     * Callbacks run on the thread that loaded the value; what they throw is lost, so they
+     * should do no more than put the value where it belongs.
+     *
+     * @param key
+     * @return The value, once loaded.
+     */
+    public synchronized CompletableFuture<V> load(K key)
+    {
+        if (key == null)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        CompletableFuture<V> future = futures.get(key);
+        if (future == null)
+        {
+            future = new CompletableFuture<>();
+            futures.put(key, future);
+            queue.add(key);
+        }
+        return future;
+    }
+
+    /**
+     * Get the value of the given key, loading it (along with whatever else has been asked
+     * for so far) if it has not been loaded yet.
+     *
+     * @param key
+     * @return
+     * @throws Exception if the value could not be loaded
+     */
+    public V get(K key) throws Exception
+    {
+        CompletableFuture<V> future = load(key);
+        if (!future.isDone())
+        {
+            try
+            {
+                dispatch();
+            }
+            catch (Exception exception)
+            {
+                // Failures of this key are thrown below, others are for whoever asked for them.
+            }
+        }
+
+        try
+        {
+            // May still be loading in another thread that dispatched it.
+            return future.join();
+        }
+        catch (CompletionException exception)
+        {
+            Throwable cause = exception.getCause();
+            throw (cause instanceof Exception) ? (Exception) cause : exception;
+        }
+    }
+
+    /**
+     * Check if there are keys that have been asked for but not dispatched yet.
+     *
+     * @return
+     */
+    public synchronized boolean isPending()
+    {
+        return !queue.isEmpty();
+    }
+
+    /**
+     * Load the keys that have been asked for so far, in batches.
+     *
+     * @return false if there was nothing to load
+     * @throws Exception the first failure of the batch function, if any; the values of its
+     * batch fail with it (the values of all remaining batches fail with an error as well)
+     */
+    public boolean dispatch() throws Exception
+    {
+        List<K> keys;
+        Map<K, CompletableFuture<V>> futures = new HashMap<>();
+        synchronized (this)
+        {
+            if (queue.isEmpty())
+            {
+                return false;
+            }
+
+            keys = new ArrayList<>(queue);
+            queue.clear();
+            for (K key : keys)
+            {
+                futures.put(key, this.futures.get(key));
+            }
+        }
+
+        Exception failure = null;
+        try
+        {
+            for (int i = 0; i < keys.size(); i += maximumBatchSize)
+            {
+                Set<K> batch = Collections.unmodifiableSet(new LinkedHashSet<>(keys.subList(i, Math.min(i + maximumBatchSize, keys.size()))));
+
+                Map<K, V> values;
+                try
+                {
+                    values = batchFunction.load(batch);
+                }
+                catch (Exception exception)
+                {
+                    for (K key : batch)
+                    {
+                        futures.get(key).completeExceptionally(exception);
+                    }
+                    if (failure == null)
+                    {
+                        failure = exception;
+                    }
+                    continue;
+                }
+
+                for (K key : batch)
+                {
+                    futures.get(key).complete((values != null) ? values.get(key) : null);
+                }
+            }
+        }
+        catch (Throwable throwable)
+        {
+            // The keys are no longer queued, so whoever waits for them would wait forever.
+            for (CompletableFuture<V> future : futures.values())
+            {
+                future.completeExceptionally(throwable);
+            }
+            throw throwable;
+        }
+
+        if (failure != null)
+        {
+            throw failure;
+        }
+        return true;
+    }
+
+    public int getMaximumBatchSize()
+    {
+        return maximumBatchSize;
+    }
+}
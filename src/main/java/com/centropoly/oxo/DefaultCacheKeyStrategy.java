@@ -0,0 +1,131 @@
+package com.centropoly.oxo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The default cache key strategy. Responses are cached per URL (the query string, normalized
+ * by a CacheKeyNormalizer, path info and servlet path), per locale (of the user's preferences)
+ * and per output format (the transformation output type, or, for untransformed responses, XML
+ * or JSON as decided by web services, see WebService#setResponseAsJSON()). Optionally, the
+ * values of the given request headers are part of the key as well.
+ *
+ * The locale of the user's preferences defaults to the one the client accepts, so the
+ * Accept-Language header is listed in the Vary header, along with the given headers.
+ *
+ * @author Paul van der Maas
+ */
+public class DefaultCacheKeyStrategy implements CacheKeyStrategy
+{
+    private final List<String> headers;
+    private final List<String> varyHeaders;
+    private final CacheKeyNormalizer normalizer;
+
+    public DefaultCacheKeyStrategy()
+    {
+        this(Collections.<String>emptyList(), new CacheKeyNormalizer());
+    }
+
+    /**
+     * @param headers the names of the request headers that the response depends on
+     * @param normalizer normalizes the query string
+     */
+    public DefaultCacheKeyStrategy(Collection<String> headers, CacheKeyNormalizer normalizer)
+    {
+        if (headers == null || normalizer == null)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        this.normalizer = normalizer;
+        this.headers = Collections.unmodifiableList(new ArrayList<>(headers));
+
+        List<String> varyHeaders = new ArrayList<>();
+        varyHeaders.add("Accept-Language");
+        varyHeaders.addAll(headers);
+        this.varyHeaders = Collections.unmodifiableList(varyHeaders);
+    }
+
+    @Override
+    public String createCacheKey(OXORequest request, OXOResponse response)
+    {
+        StringBuilder cacheKey = new StringBuilder();
+        cacheKey.append(normalizer.normalize(request.getQueryString())).append(';');
+        cacheKey.append(request.getPathInfo()).append(';');
+        cacheKey.append(request.getServletPath()).append(';');
+        cacheKey.append(getLocale(request).toLanguageTag()).append(';');
+        cacheKey.append(getOutputFormat(request, response));
+
+        // Values are prefixed with their length, as they may contain the separators themselves.
+        for (String header : headers)
+        {
+            String value = request.getHeader(header);
+            if (value == null)
+            {
+                value = "";
+            }
+            cacheKey.append(';').append(header).append('=').append(value.length()).append(':').append(value);
+        }
+
+        return cacheKey.toString();
+    }
+
+    @Override
+    public Collection<String> getVaryHeaders(OXORequest request, OXOResponse response)
+    {
+        return varyHeaders;
+    }
+
+    public List<String> getHeaders()
+    {
+        return headers;
+    }
+
+    public CacheKeyNormalizer getNormalizer()
+    {
+        return normalizer;
+    }
+
+    /**
+     * Get the locale the response is rendered in.
+     *
+     * @param request
+     * @return
+     */
+    protected Locale getLocale(OXORequest request)
+    {
+        User user = OXOContext.getUser();
+        Locale locale = (user != null) ? user.getPreferences().getLocale() : request.getLocale();
+
+        return (locale != null) ? locale : Locale.ROOT;
+    }
+
+    /**
+     * Get the format the response is written in.
+     *
+     * @param request
+     * @param response
+     * @return
+     */
+    protected String getOutputFormat(OXORequest request, OXOResponse response)
+    {
+        if (response.getTransformationOutputType() != null)
+        {
+            return response.getTransformationOutputType().toString();
+        }
+
+        // Untransformed responses of web services are written as JSON if so requested, see WebService.
+        // The web service decides while processing the request; the parameter is only the default.
+        Object responseAsJSON = request.getAttribute(WebService.RESPONSE_AS_JSON_ATTRIBUTE);
+        if (responseAsJSON != null)
+        {
+            return ((Boolean) responseAsJSON) ? "json" : "xml";
+        }
+
+        String responseAs = request.getParameter("responseAs");
+        return (responseAs != null && responseAs.equalsIgnoreCase("JSON")) ? "json" : "xml";
+    }
+}
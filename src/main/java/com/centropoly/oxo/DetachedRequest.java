@@ -0,0 +1,756 @@
+package com.centropoly.oxo;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.security.Principal;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.ReadListener;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionContext;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.Part;
+
+/**
+ * A snapshot of a request that can be processed after the original request has completed,
+ * for example to rebuild a cached response in the background. The container may recycle
+ * the original request once it is complete, so everything needed to process it again is
+ * copied up front.
+ *
+ * Conditional headers are not copied, so that the response is always generated in full.
+ * Nothing is delegated to the original request: what is not copied (the body, roles,
+ * authentication) has a neutral value, as for a request without it.
+ *
+ * Neither are the client's session and cookies: the response is shared by every client
+ * with the same cache key, and processing the request again must not change the client's
+ * session. A detached request gets a session of its own instead, which is discarded along
+ * with it. What the user's preferences in the session contribute to the response, its
+ * locale, is passed in explicitly.
+ *
+ * @author Paul van der Maas
+ */
+final class DetachedRequest extends HttpServletRequestWrapper
+{
+    // An empty body; background requests are GET requests.
+    private final static ServletInputStream EMPTY_INPUT_STREAM = new ServletInputStream()
+    {
+        @Override
+        public int read()
+        {
+            return -1;
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener)
+        {
+            throw new IllegalStateException();
+        }
+    };
+
+    private final String method;
+    private final String protocol;
+    private final String scheme;
+    private final boolean secure;
+    private final String serverName;
+    private final int serverPort;
+    private final String localName;
+    private final String localAddr;
+    private final int localPort;
+    private final String requestURI;
+    private final StringBuffer requestURL;
+    private final String contextPath;
+    private final String servletPath;
+    private final String pathInfo;
+    private final String queryString;
+    private final String pathTranslated;
+    private final String remoteAddr;
+    private final String remoteHost;
+    private final int remotePort;
+    private final String authType;
+    private final String remoteUser;
+    private final Principal userPrincipal;
+    private final String contentType;
+    private String characterEncoding;
+    private final Locale locale;
+    private final List<Locale> locales = new ArrayList<>();
+    private final Map<String, String[]> parameters = new LinkedHashMap<>();
+    private final Map<String, List<String>> headers = new LinkedHashMap<>();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final ServletContext servletContext;
+
+    // Created on demand; guarded by this.
+    private DetachedSession session = null;
+
+    /**
+     * @param request
+     * @param locale the locale the response is rendered in (see DefaultCacheKeyStrategy#getLocale())
+     */
+    DetachedRequest(HttpServletRequest request, Locale locale)
+    {
+        super(request);
+
+        method = request.getMethod();
+        protocol = request.getProtocol();
+        scheme = request.getScheme();
+        secure = request.isSecure();
+        serverName = request.getServerName();
+        serverPort = request.getServerPort();
+        localName = request.getLocalName();
+        localAddr = request.getLocalAddr();
+        localPort = request.getLocalPort();
+        requestURI = request.getRequestURI();
+        requestURL = request.getRequestURL();
+        contextPath = request.getContextPath();
+        servletPath = request.getServletPath();
+        pathInfo = request.getPathInfo();
+        queryString = request.getQueryString();
+        pathTranslated = request.getPathTranslated();
+        remoteAddr = request.getRemoteAddr();
+        remoteHost = request.getRemoteHost();
+        remotePort = request.getRemotePort();
+        authType = request.getAuthType();
+        remoteUser = request.getRemoteUser();
+        userPrincipal = request.getUserPrincipal();
+        contentType = request.getContentType();
+        characterEncoding = request.getCharacterEncoding();
+        this.locale = locale;
+        locales.add(locale);
+        for (Locale acceptedLocale : Collections.list(request.getLocales()))
+        {
+            if (!acceptedLocale.equals(locale))
+            {
+                locales.add(acceptedLocale);
+            }
+        }
+        parameters.putAll(request.getParameterMap());
+
+        for (String name : Collections.list(request.getHeaderNames()))
+        {
+            if (!name.regionMatches(true, 0, "If-", 0, 3) && !name.equalsIgnoreCase("Cookie"))
+            {
+                headers.put(name.toLowerCase(Locale.ROOT), Collections.list(request.getHeaders(name)));
+            }
+        }
+
+        for (String name : Collections.list(request.getAttributeNames()))
+        {
+            attributes.put(name, request.getAttribute(name));
+        }
+
+        servletContext = request.getServletContext();
+    }
+
+    @Override
+    public String getMethod()
+    {
+        return method;
+    }
+
+    @Override
+    public String getProtocol()
+    {
+        return protocol;
+    }
+
+    @Override
+    public String getScheme()
+    {
+        return scheme;
+    }
+
+    @Override
+    public boolean isSecure()
+    {
+        return secure;
+    }
+
+    @Override
+    public String getServerName()
+    {
+        return serverName;
+    }
+
+    @Override
+    public int getServerPort()
+    {
+        return serverPort;
+    }
+
+    @Override
+    public String getLocalName()
+    {
+        return localName;
+    }
+
+    @Override
+    public String getLocalAddr()
+    {
+        return localAddr;
+    }
+
+    @Override
+    public int getLocalPort()
+    {
+        return localPort;
+    }
+
+    @Override
+    public String getRequestURI()
+    {
+        return requestURI;
+    }
+
+    @Override
+    public StringBuffer getRequestURL()
+    {
+        return new StringBuffer(requestURL);
+    }
+
+    @Override
+    public String getContextPath()
+    {
+        return contextPath;
+    }
+
+    @Override
+    public String getServletPath()
+    {
+        return servletPath;
+    }
+
+    @Override
+    public String getPathInfo()
+    {
+        return pathInfo;
+    }
+
+    @Override
+    public String getQueryString()
+    {
+        return queryString;
+    }
+
+    @Override
+    public String getPathTranslated()
+    {
+        return pathTranslated;
+    }
+
+    @Override
+    public String getRemoteAddr()
+    {
+        return remoteAddr;
+    }
+
+    @Override
+    public String getRemoteHost()
+    {
+        return remoteHost;
+    }
+
+    @Override
+    public int getRemotePort()
+    {
+        return remotePort;
+    }
+
+    @Override
+    public String getAuthType()
+    {
+        return authType;
+    }
+
+    @Override
+    public String getRemoteUser()
+    {
+        return remoteUser;
+    }
+
+    @Override
+    public Principal getUserPrincipal()
+    {
+        return userPrincipal;
+    }
+
+    @Override
+    public boolean isUserInRole(String role)
+    {
+        // Roles cannot be copied; responses that depend on them should not be cached anyway.
+        return false;
+    }
+
+    @Override
+    public boolean authenticate(HttpServletResponse response)
+    {
+        return false;
+    }
+
+    @Override
+    public void login(String username, String password) throws ServletException
+    {
+        throw new ServletException("A detached request cannot log in.");
+    }
+
+    @Override
+    public void logout()
+    {
+    }
+
+    @Override
+    public String getCharacterEncoding()
+    {
+        return characterEncoding;
+    }
+
+    @Override
+    public void setCharacterEncoding(String characterEncoding)
+    {
+        this.characterEncoding = characterEncoding;
+    }
+
+    @Override
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    @Override
+    public int getContentLength()
+    {
+        return -1;
+    }
+
+    @Override
+    public long getContentLengthLong()
+    {
+        return -1;
+    }
+
+    @Override
+    public ServletInputStream getInputStream()
+    {
+        return EMPTY_INPUT_STREAM;
+    }
+
+    @Override
+    public BufferedReader getReader()
+    {
+        return new BufferedReader(new StringReader(""));
+    }
+
+    @Override
+    public Collection<Part> getParts()
+    {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Part getPart(String name)
+    {
+        return null;
+    }
+
+    @Override
+    public Locale getLocale()
+    {
+        return locale;
+    }
+
+    @Override
+    public Enumeration<Locale> getLocales()
+    {
+        return Collections.enumeration(locales);
+    }
+
+    @Override
+    public String getParameter(String name)
+    {
+        String[] values = parameters.get(name);
+        return (values != null && values.length > 0) ? values[0] : null;
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap()
+    {
+        return Collections.unmodifiableMap(parameters);
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames()
+    {
+        return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name)
+    {
+        return parameters.get(name);
+    }
+
+    @Override
+    public String getHeader(String name)
+    {
+        List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+        return (values != null && !values.isEmpty()) ? values.get(0) : null;
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name)
+    {
+        List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+        return Collections.enumeration((values != null) ? values : Collections.<String>emptyList());
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames()
+    {
+        return Collections.enumeration(headers.keySet());
+    }
+
+    @Override
+    public long getDateHeader(String name)
+    {
+        String value = getHeader(name);
+        if (value == null)
+        {
+            return -1;
+        }
+
+        try
+        {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException exception)
+        {
+            throw new IllegalArgumentException(exception);
+        }
+    }
+
+    @Override
+    public int getIntHeader(String name)
+    {
+        String value = getHeader(name);
+        return (value != null) ? Integer.parseInt(value) : -1;
+    }
+
+    @Override
+    public Object getAttribute(String name)
+    {
+        return attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames()
+    {
+        return Collections.enumeration(attributes.keySet());
+    }
+
+    @Override
+    public void setAttribute(String name, Object value)
+    {
+        if (value == null)
+        {
+            attributes.remove(name);
+        }
+        else
+        {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void removeAttribute(String name)
+    {
+        attributes.remove(name);
+    }
+
+    @Override
+    public Cookie[] getCookies()
+    {
+        return null;
+    }
+
+    @Override
+    public HttpSession getSession()
+    {
+        return getSession(true);
+    }
+
+    @Override
+    public synchronized HttpSession getSession(boolean create)
+    {
+        if ((session == null || session.invalidated) && create)
+        {
+            session = new DetachedSession(servletContext);
+        }
+        return (session != null && !session.invalidated) ? session : null;
+    }
+
+    @Override
+    public String changeSessionId()
+    {
+        throw new IllegalStateException("The session of a detached request cannot be changed.");
+    }
+
+    @Override
+    public String getRequestedSessionId()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdValid()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromCookie()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromURL()
+    {
+        return false;
+    }
+
+    @Override
+    @Deprecated
+    public boolean isRequestedSessionIdFromUrl()
+    {
+        return false;
+    }
+
+    @Override
+    public ServletContext getServletContext()
+    {
+        return servletContext;
+    }
+
+    @Override
+    public RequestDispatcher getRequestDispatcher(String path)
+    {
+        // Only absolute paths; relative ones would need the original request.
+        return (path != null && path.startsWith("/")) ? servletContext.getRequestDispatcher(path) : null;
+    }
+
+    @Override
+    @Deprecated
+    public String getRealPath(String path)
+    {
+        return servletContext.getRealPath(path);
+    }
+
+    @Override
+    public DispatcherType getDispatcherType()
+    {
+        return DispatcherType.REQUEST;
+    }
+
+    @Override
+    public boolean isAsyncSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isAsyncStarted()
+    {
+        return false;
+    }
+
+    @Override
+    public AsyncContext startAsync()
+    {
+        throw new IllegalStateException("A detached request does not support async.");
+    }
+
+    @Override
+    public AsyncContext startAsync(ServletRequest request, ServletResponse response)
+    {
+        throw new IllegalStateException("A detached request does not support async.");
+    }
+
+    @Override
+    public AsyncContext getAsyncContext()
+    {
+        throw new IllegalStateException("A detached request does not support async.");
+    }
+
+    @Override
+    public <T extends HttpUpgradeHandler> T upgrade(Class<T> handlerClass) throws ServletException
+    {
+        throw new ServletException("A detached request cannot be upgraded.");
+    }
+
+    /**
+     * The session of a detached request. It only lives as long as the request.
+     */
+    private final static class DetachedSession implements HttpSession
+    {
+        private final String id = UUID.randomUUID().toString();
+        private final long creationTime = System.currentTimeMillis();
+        private final ServletContext servletContext;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private int maxInactiveInterval = 0;
+        private volatile boolean invalidated = false;
+
+        DetachedSession(ServletContext servletContext)
+        {
+            this.servletContext = servletContext;
+        }
+
+        @Override
+        public long getCreationTime()
+        {
+            return creationTime;
+        }
+
+        @Override
+        public String getId()
+        {
+            return id;
+        }
+
+        @Override
+        public long getLastAccessedTime()
+        {
+            return creationTime;
+        }
+
+        @Override
+        public ServletContext getServletContext()
+        {
+            return servletContext;
+        }
+
+        @Override
+        public void setMaxInactiveInterval(int interval)
+        {
+            maxInactiveInterval = interval;
+        }
+
+        @Override
+        public int getMaxInactiveInterval()
+        {
+            return maxInactiveInterval;
+        }
+
+        @Override
+        @Deprecated
+        public HttpSessionContext getSessionContext()
+        {
+            return null;
+        }
+
+        @Override
+        public Object getAttribute(String name)
+        {
+            return attributes.get(name);
+        }
+
+        @Override
+        @Deprecated
+        public Object getValue(String name)
+        {
+            return getAttribute(name);
+        }
+
+        @Override
+        public Enumeration<String> getAttributeNames()
+        {
+            return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+        }
+
+        @Override
+        @Deprecated
+        public String[] getValueNames()
+        {
+            return attributes.keySet().toArray(new String[0]);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value)
+        {
+            if (value == null)
+            {
+                attributes.remove(name);
+            }
+            else
+            {
+                attributes.put(name, value);
+            }
+        }
+
+        @Override
+        @Deprecated
+        public void putValue(String name, Object value)
+        {
+            setAttribute(name, value);
+        }
+
+        @Override
+        public void removeAttribute(String name)
+        {
+            attributes.remove(name);
+        }
+
+        @Override
+        @Deprecated
+        public void removeValue(String name)
+        {
+            removeAttribute(name);
+        }
+
+        @Override
+        public void invalidate()
+        {
+            invalidated = true;
+            attributes.clear();
+        }
+
+        @Override
+        public boolean isNew()
+        {
+            return true;
+        }
+    }
+}
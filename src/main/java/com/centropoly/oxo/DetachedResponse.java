@@ -0,0 +1,288 @@
+package com.centropoly.oxo;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response without a client, for requests that are processed after the original
+ * request has completed (see DetachedRequest). Output and headers are discarded;
+ * only the status, content type and locale are kept. Closing the output stream commits the response.
+ * Nothing is delegated to the original response.
+ *
+ * @author Paul van der Maas
+ */
+final class DetachedResponse extends HttpServletResponseWrapper
+{
+    private final ServletOutputStream outputStream = new ServletOutputStream()
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+
+        @Override
+        public void close()
+        {
+            committed = true;
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener)
+        {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private int status = SC_OK;
+    private String contentType = null;
+    private String characterEncoding = StandardCharsets.ISO_8859_1.name();
+    private Locale locale;
+    private int bufferSize = 0;
+    private boolean committed = false;
+
+    DetachedResponse(HttpServletResponse response)
+    {
+        super(response);
+
+        locale = response.getLocale();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream()
+    {
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter()
+    {
+        return new PrintWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void setStatus(int status)
+    {
+        this.status = status;
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus(int status, String message)
+    {
+        this.status = status;
+    }
+
+    @Override
+    public int getStatus()
+    {
+        return status;
+    }
+
+    @Override
+    public void sendError(int status) throws IOException
+    {
+        sendError(status, null);
+    }
+
+    @Override
+    public void sendError(int status, String message) throws IOException
+    {
+        this.status = status;
+        committed = true;
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException
+    {
+        status = SC_FOUND;
+        committed = true;
+    }
+
+    @Override
+    public void setContentType(String contentType)
+    {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    @Override
+    public void setCharacterEncoding(String characterEncoding)
+    {
+        this.characterEncoding = characterEncoding;
+    }
+
+    @Override
+    public String getCharacterEncoding()
+    {
+        return characterEncoding;
+    }
+
+    @Override
+    public void setLocale(Locale locale)
+    {
+        this.locale = locale;
+    }
+
+    @Override
+    public Locale getLocale()
+    {
+        return locale;
+    }
+
+    @Override
+    public void setBufferSize(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    @Override
+    public void setContentLength(int length)
+    {
+    }
+
+    @Override
+    public void setContentLengthLong(long length)
+    {
+    }
+
+    @Override
+    public void setHeader(String name, String value)
+    {
+    }
+
+    @Override
+    public void addHeader(String name, String value)
+    {
+    }
+
+    @Override
+    public void setDateHeader(String name, long date)
+    {
+    }
+
+    @Override
+    public void addDateHeader(String name, long date)
+    {
+    }
+
+    @Override
+    public void setIntHeader(String name, int value)
+    {
+    }
+
+    @Override
+    public void addIntHeader(String name, int value)
+    {
+    }
+
+    @Override
+    public boolean containsHeader(String name)
+    {
+        return false;
+    }
+
+    @Override
+    public String getHeader(String name)
+    {
+        return null;
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name)
+    {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Collection<String> getHeaderNames()
+    {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void addCookie(Cookie cookie)
+    {
+    }
+
+    // URLs are not rewritten, there is no client to keep a session for.
+
+    @Override
+    public String encodeURL(String url)
+    {
+        return url;
+    }
+
+    @Override
+    public String encodeRedirectURL(String url)
+    {
+        return url;
+    }
+
+    @Override
+    @Deprecated
+    public String encodeUrl(String url)
+    {
+        return url;
+    }
+
+    @Override
+    @Deprecated
+    public String encodeRedirectUrl(String url)
+    {
+        return url;
+    }
+
+    @Override
+    public boolean isCommitted()
+    {
+        return committed;
+    }
+
+    @Override
+    public void flushBuffer()
+    {
+    }
+
+    @Override
+    public void resetBuffer()
+    {
+    }
+
+    @Override
+    public void reset()
+    {
+        status = SC_OK;
+    }
+}
@@ -0,0 +1,594 @@
+package com.centropoly.oxo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.function.Predicate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The second, persistent tier of the response cache. Responses evicted from memory
+ * are stored here, one file per response, and are memory mapped when they are
+ * requested again. The files are indexed by an append-only log, which is replayed
+ * (and compacted) when the disk cache is first used, so that cached responses
+ * survive restarts.
+ *
+ * Whether a response from disk is still valid is decided like for any cached
+ * response, by its date/time.
+ *
+ * @author Paul van der Maas
+ */
+final class DiskCache
+{
+    private final static Logger logger = LogManager.getLogger(DiskCache.class);
+
+    private final static String INDEX_FILE_NAME = "index";
+    private final static String BODY_FILE_SUFFIX = ".body";
+
+    // The index starts with a magic number and version; indexes of other versions are discarded.
+    private final static int MAGIC = 0x4F584F44;
+    private final static int VERSION = 2;
+
+    private final static byte PUT = 1;
+    private final static byte REMOVE = 2;
+
+    private final File directory;
+    private final long maximumSize;
+
+    // Access ordered, so that the least recently used responses come first.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long size = 0;
+
+    private DataOutputStream index = null;
+    private boolean loaded = false;
+
+    // Incremented whenever responses are invalidated (see #removeIf()), so that responses that
+    // are being stored meanwhile are not stored after all.
+    private long removals = 0;
+
+    /**
+     * @param directory the directory to store the responses in; it is created if needed
+     * @param maximumSize the maximum total size of the stored responses in bytes
+     */
+    DiskCache(File directory, long maximumSize)
+    {
+        if (directory == null || maximumSize < 0)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        this.directory = directory;
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Get the stored response for the given cache key, if any.
+     *
+     * @param key
+     * @return
+     */
+    synchronized Entry get(String key)
+    {
+        load();
+
+        return entries.get(key);
+    }
+
+    /**
+     * Map the body of a stored response into memory.
+     *
+     * @param entry
+     * @return the body, or null if it can no longer be read
+     */
+    ByteBuffer map(Entry entry)
+    {
+        try (FileChannel channel = FileChannel.open(new File(directory, entry.fileName).toPath(), StandardOpenOption.READ))
+        {
+            // The mapping remains valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.size);
+        }
+        catch (IOException exception)
+        {
+            logger.warn("The cached response " + entry.fileName + " could not be read from disk.", exception);
+            remove(entry.key);
+            return null;
+        }
+    }
+
+    /**
+     * Store a completely written response.
+     *
+     * @param key
+     * @param outputStream
+     * @param contentEncoding the content coding of the response, or null if it is not encoded
+     * @param eTag the entity tag of the (unencoded) response
+     * @param dateTime the date/time the response was cached, in milliseconds
+     * @param tags the cache tags of the response
+     * @param dataClass the name of the data class of the response
+     * @param path the path of the request
+     */
+    void put(String key, CachedOutputStream outputStream, String contentEncoding, String eTag, long dateTime, Set<String> tags, String dataClass, String path)
+    {
+        Entry entry;
+        long removals;
+        synchronized (this)
+        {
+            load();
+
+            Entry current = entries.get(key);
+            if (index == null || (current != null && current.dateTime == dateTime))
+            {
+                return; // Unavailable, or already stored.
+            }
+
+            if (outputStream.size() > Math.min(maximumSize, Integer.MAX_VALUE))
+            {
+                return; // Will never fit.
+            }
+
+            entry = new Entry();
+            entry.key = key;
+            entry.fileName = hash(key) + "-" + dateTime + BODY_FILE_SUFFIX;
+            entry.dateTime = dateTime;
+            entry.contentType = outputStream.getContentType();
+            entry.characterEncoding = outputStream.getCharacterEncoding();
+            entry.contentEncoding = contentEncoding;
+            entry.eTag = eTag;
+            entry.size = outputStream.size();
+            entry.tags = tags;
+            entry.dataClass = dataClass;
+            entry.path = path;
+
+            removals = this.removals;
+        }
+
+        // The body is written without holding the lock, so that lookups do not wait for it.
+        File file = new File(directory, entry.fileName);
+        try
+        {
+            // Write to a temporary file first, so that a crash never leaves a partial body behind.
+            // Its name is unique, as the same response may be stored by several threads at once.
+            File temporaryFile = Files.createTempFile(directory.toPath(), entry.fileName, ".tmp").toFile();
+            try
+            {
+                try (FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+                {
+                    outputStream.writeTo(channel);
+                }
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                temporaryFile.delete();
+            }
+        }
+        catch (IOException exception)
+        {
+            logger.warn("The cached response for " + key + " could not be written to disk.", exception);
+            discard(entry);
+            return;
+        }
+
+        synchronized (this)
+        {
+            // It may have been closed, or possibly invalidated, in the meantime.
+            if (index == null || removals != this.removals)
+            {
+                discard(entry);
+                return;
+            }
+
+            Entry current = entries.get(key);
+            if (current != null && current.dateTime == entry.dateTime)
+            {
+                return; // Stored by another thread in the meantime, in the same file.
+            }
+
+            try
+            {
+                writePut(index, entry);
+                index.flush();
+            }
+            catch (IOException exception)
+            {
+                logger.warn("The cached response for " + key + " could not be indexed.", exception);
+                discard(entry);
+                return;
+            }
+
+            replace(key, entry);
+            evict();
+        }
+    }
+
+    // Delete the body of an entry that is not stored after all, unless it is the body of the stored entry.
+    private synchronized void discard(Entry entry)
+    {
+        Entry current = entries.get(entry.key);
+        if (current == null || !current.fileName.equals(entry.fileName))
+        {
+            new File(directory, entry.fileName).delete();
+        }
+    }
+
+    /**
+     * Remove the stored response for the given cache key, if any.
+     *
+     * @param key
+     */
+    synchronized void remove(String key)
+    {
+        load();
+
+        if (entries.containsKey(key))
+        {
+            writeRemove(key);
+            flush();
+
+            replace(key, null);
+        }
+    }
+
+    /**
+     * Remove the stored responses that match the given predicate.
+     *
+     * @param predicate
+     * @return the number of removed responses
+     */
+    synchronized int removeIf(Predicate<Entry> predicate)
+    {
+        load();
+
+        removals++;
+
+        int removed = 0;
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();)
+        {
+            Entry entry = iterator.next();
+            if (predicate.test(entry))
+            {
+                iterator.remove();
+                size -= entry.size;
+                new File(directory, entry.fileName).delete();
+                writeRemove(entry.key);
+                removed++;
+            }
+        }
+        flush();
+
+        return removed;
+    }
+
+    synchronized int size()
+    {
+        load();
+
+        return entries.size();
+    }
+
+    synchronized void close()
+    {
+        if (index != null)
+        {
+            try
+            {
+                index.close();
+            }
+            catch (IOException exception)
+            {
+                logger.warn("The disk cache index could not be closed.", exception);
+            }
+            index = null;
+        }
+        loaded = false;
+        entries.clear();
+        size = 0;
+    }
+
+    // Must be called while synchronized.
+    private void replace(String key, Entry entry)
+    {
+        Entry replacedEntry = (entry != null) ? entries.put(key, entry) : entries.remove(key);
+        if (replacedEntry != null)
+        {
+            size -= replacedEntry.size;
+            // On most platforms, mapped bodies remain readable after their file is deleted.
+            new File(directory, replacedEntry.fileName).delete();
+        }
+        if (entry != null)
+        {
+            size += entry.size;
+        }
+    }
+
+    // Must be called while synchronized.
+    private void evict()
+    {
+        if (index == null)
+        {
+            return;
+        }
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maximumSize && iterator.hasNext())
+        {
+            Entry victim = iterator.next();
+            iterator.remove();
+            size -= victim.size;
+            new File(directory, victim.fileName).delete();
+
+            writeRemove(victim.key);
+        }
+
+        flush();
+    }
+
+    // Must be called while synchronized.
+    private void writeRemove(String key)
+    {
+        if (index != null)
+        {
+            try
+            {
+                index.writeByte(REMOVE);
+                index.writeUTF(key);
+            }
+            catch (IOException exception)
+            {
+                logger.warn("The removal of the cached response for " + key + " could not be logged.", exception);
+            }
+        }
+    }
+
+    // Must be called while synchronized.
+    private void flush()
+    {
+        if (index != null)
+        {
+            try
+            {
+                index.flush();
+            }
+            catch (IOException exception)
+            {
+                logger.warn("The disk cache index could not be written.", exception);
+            }
+        }
+    }
+
+    /**
+     * Replay the index, then compact it and remove files that are no longer indexed.
+     * This happens lazily, when the disk cache is first used. Must be called while synchronized.
+     */
+    private void load()
+    {
+        if (loaded)
+        {
+            return;
+        }
+        loaded = true;
+
+        directory.mkdirs();
+
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        if (indexFile.exists())
+        {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile))))
+            {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                {
+                    throw new IOException("The disk cache index has an unknown version, it is discarded.");
+                }
+
+                while (true)
+                {
+                    byte operation = in.readByte();
+                    if (operation == PUT)
+                    {
+                        Entry entry = readPut(in);
+                        entries.put(entry.key, entry);
+                    }
+                    else if (operation == REMOVE)
+                    {
+                        entries.remove(in.readUTF());
+                    }
+                    else
+                    {
+                        throw new IOException("The disk cache index is corrupt.");
+                    }
+                }
+            }
+            catch (EOFException exception)
+            {
+                // The end of the index, possibly in the middle of a record that was not completely written.
+            }
+            catch (IOException exception)
+            {
+                logger.warn("The disk cache index could not be read completely.", exception);
+            }
+        }
+
+        Set<String> fileNames = new HashSet<>();
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();)
+        {
+            Entry entry = iterator.next();
+            File file = new File(directory, entry.fileName);
+            if (file.length() == entry.size && file.isFile())
+            {
+                fileNames.add(entry.fileName);
+                size += entry.size;
+            }
+            else
+            {
+                iterator.remove();
+            }
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                if (!file.getName().equals(INDEX_FILE_NAME) && !fileNames.contains(file.getName()))
+                {
+                    file.delete();
+                }
+            }
+        }
+
+        // Compact the index.
+        try
+        {
+            File compactedIndexFile = new File(directory, INDEX_FILE_NAME + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compactedIndexFile))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (Entry entry : entries.values())
+                {
+                    writePut(out, entry);
+                }
+            }
+            Files.move(compactedIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        }
+        catch (IOException exception)
+        {
+            // Nothing will be stored, responses that were stored earlier can still be read.
+            logger.error("The disk cache in " + directory + " could not be opened.", exception);
+            return;
+        }
+
+        logger.info("The disk cache in " + directory + " was loaded with " + entries.size() + " responses.");
+
+        evict();
+    }
+
+    private static void writePut(DataOutputStream out, Entry entry) throws IOException
+    {
+        out.writeByte(PUT);
+        out.writeUTF(entry.key);
+        out.writeUTF(entry.fileName);
+        out.writeLong(entry.dateTime);
+        out.writeUTF((entry.contentType != null) ? entry.contentType : "");
+        out.writeUTF((entry.characterEncoding != null) ? entry.characterEncoding : "");
+        out.writeUTF((entry.contentEncoding != null) ? entry.contentEncoding : "");
+        out.writeUTF((entry.eTag != null) ? entry.eTag : "");
+        out.writeLong(entry.size);
+        out.writeUTF((entry.dataClass != null) ? entry.dataClass : "");
+        out.writeUTF((entry.path != null) ? entry.path : "");
+        out.writeInt(entry.tags.size());
+        for (String tag : entry.tags)
+        {
+            out.writeUTF(tag);
+        }
+    }
+
+    private static Entry readPut(DataInputStream in) throws IOException
+    {
+        Entry entry = new Entry();
+        entry.key = in.readUTF();
+        entry.fileName = in.readUTF();
+        entry.dateTime = in.readLong();
+        entry.contentType = in.readUTF();
+        entry.characterEncoding = in.readUTF();
+        entry.contentEncoding = in.readUTF();
+        entry.eTag = in.readUTF();
+        entry.size = in.readLong();
+        entry.dataClass = in.readUTF();
+        entry.path = in.readUTF();
+
+        int tagCount = in.readInt();
+        if (tagCount > 0)
+        {
+            entry.tags = new HashSet<>();
+            for (int i = 0; i < tagCount; i++)
+            {
+                entry.tags.add(in.readUTF());
+            }
+        }
+
+        if (entry.contentType.isEmpty())
+        {
+            entry.contentType = null;
+        }
+        if (entry.characterEncoding.isEmpty())
+        {
+            entry.characterEncoding = null;
+        }
+        if (entry.contentEncoding.isEmpty())
+        {
+            entry.contentEncoding = null;
+        }
+        if (entry.eTag.isEmpty())
+        {
+            entry.eTag = null;
+        }
+        if (entry.dataClass.isEmpty())
+        {
+            entry.dataClass = null;
+        }
+        if (entry.path.isEmpty())
+        {
+            entry.path = null;
+        }
+
+        return entry;
+    }
+
+    private static String hash(String key)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+            {
+                hash.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hash.toString();
+        }
+        catch (NoSuchAlgorithmException exception)
+        {
+            // Every Java platform supports SHA-1.
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    static final class Entry
+    {
+        String key;
+        String fileName;
+        long dateTime;
+        String contentType;
+        String characterEncoding;
+        String contentEncoding;
+        String eTag;
+        long size;
+        Set<String> tags = Collections.emptySet();
+        String dataClass;
+        String path;
+    }
+}
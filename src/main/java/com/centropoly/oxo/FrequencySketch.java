@@ -0,0 +1,122 @@
+package com.centropoly.oxo;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count-min sketch that estimates how often keys were accessed recently, using a fixed
+ * amount of memory regardless of the number of keys. Counts saturate at 15 and all counts
+ * are halved periodically, so keys that used to be popular are eventually forgotten.
+ * 
+ * This is used to decide whether a new cache entry is worth evicting another one for
+ * (TinyLFU admission), so that one-off requests do not push out popular responses.
+ * 
+ * @author Paul van der Maas
+ */
+final class FrequencySketch
+{
+    private final static int DEPTH = 4;
+    private final static int MAXIMUM_COUNT = 15;
+
+    private final static int[] SEEDS = {0x97cb3127, 0xb4b82e5d, 0x5c1f6a3b, 0x2d7e9f43};
+
+    private final AtomicIntegerArray counters;
+    private final int mask;
+
+    private final AtomicLong additions = new AtomicLong(0);
+    private final long sampleSize;
+
+    /**
+     * Create a sketch for roughly the given number of distinct, recently accessed keys.
+     * 
+     * @param width 
+     */
+    FrequencySketch(int width)
+    {
+        int size = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+
+        this.counters = new AtomicIntegerArray(size * DEPTH);
+        this.mask = size - 1;
+        this.sampleSize = 10L * size;
+    }
+
+    /**
+     * Record an access of the given key.
+     * 
+     * @param key 
+     */
+    void increment(Object key)
+    {
+        int hash = spread(key.hashCode());
+
+        for (int row = 0; row < DEPTH; row++)
+        {
+            int index = indexOf(hash, row);
+
+            int count;
+            do
+            {
+                count = counters.get(index);
+                if (count >= MAXIMUM_COUNT)
+                {
+                    break;
+                }
+            }
+            while (!counters.compareAndSet(index, count, count + 1));
+        }
+
+        if (additions.incrementAndGet() % sampleSize == 0)
+        {
+            reset();
+        }
+    }
+
+    /**
+     * Estimate how often the given key was accessed recently.
+     * 
+     * @param key
+     * @return 
+     */
+    int frequency(Object key)
+    {
+        int hash = spread(key.hashCode());
+
+        int frequency = MAXIMUM_COUNT;
+        for (int row = 0; row < DEPTH; row++)
+        {
+            frequency = Math.min(frequency, counters.get(indexOf(hash, row)));
+        }
+
+        return frequency;
+    }
+
+    // Halve all counts so that old accesses weigh less than recent ones.
+    private void reset()
+    {
+        for (int index = 0; index < counters.length(); index++)
+        {
+            int count;
+            do
+            {
+                count = counters.get(index);
+            }
+            while (!counters.compareAndSet(index, count, count >>> 1));
+        }
+    }
+
+    private int indexOf(int hash, int row)
+    {
+        int rowHash = spread(hash * SEEDS[row]);
+
+        return row * (mask + 1) + (rowHash & mask);
+    }
+
+    private static int spread(int hash)
+    {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+
+        return hash;
+    }
+}
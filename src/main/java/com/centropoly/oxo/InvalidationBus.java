@@ -0,0 +1,43 @@
+package com.centropoly.oxo;
+
+import java.util.function.Consumer;
+
+/**
+ * Broadcasts invalidations of cached responses to the other nodes of a cluster, so that
+ * content that changes is invalidated on every node, not only on the node it was changed on.
+ * See CacheInvalidator#setInvalidationBus().
+ *
+ * Implementations deliver events published on one node to the subscribers on all other
+ * nodes, not to those on the node itself. Delivery is best effort; cached responses still
+ * expire as usual if an event is lost.
+ *
+ * @author Paul van der Maas
+ */
+public interface InvalidationBus
+{
+    /**
+     * Get the id of this node, the origin of the events it publishes.
+     *
+     * @return
+     */
+    String getNodeId();
+
+    /**
+     * Broadcast the given event to the other nodes.
+     *
+     * @param event
+     */
+    void publish(InvalidationEvent event);
+
+    /**
+     * Receive the events published by the other nodes.
+     *
+     * @param subscriber called for every event, possibly on another thread
+     */
+    void subscribe(Consumer<InvalidationEvent> subscriber);
+
+    /**
+     * Stop publishing and receiving events.
+     */
+    void close();
+}
@@ -0,0 +1,61 @@
+package com.centropoly.oxo;
+
+/**
+ * An invalidation of cached responses that is broadcast to the other nodes of a cluster
+ * through an InvalidationBus, see CacheInvalidator.
+ *
+ * @author Paul van der Maas
+ */
+public final class InvalidationEvent
+{
+    private final Type type;
+    private final String value;
+    private final String origin;
+
+    /**
+     * @param type what the cached responses are invalidated by
+     * @param value the cache key, cache tag, data class name or path prefix; ignored for ALL
+     * @param origin the id of the node the invalidation originated on
+     */
+    public InvalidationEvent(Type type, String value, String origin)
+    {
+        if (type == null || origin == null || (value == null && type != Type.ALL))
+        {
+            throw new IllegalArgumentException();
+        }
+
+        this.type = type;
+        this.value = (type != Type.ALL) ? value : "";
+        this.origin = origin;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public String getValue()
+    {
+        return value;
+    }
+
+    public String getOrigin()
+    {
+        return origin;
+    }
+
+    @Override
+    public String toString()
+    {
+        return type + " " + value + " (from " + origin + ")";
+    }
+
+    public enum Type
+    {
+        KEY,
+        TAG,
+        DATA_CLASS,
+        PREFIX,
+        ALL
+    }
+}
@@ -0,0 +1,84 @@
+package com.centropoly.oxo;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * An invalidation bus within the JVM. Buses in the same group act as the nodes of a cluster,
+ * which is mostly useful for testing; events are delivered synchronously.
+ *
+ * @author Paul van der Maas
+ */
+public class LocalInvalidationBus implements InvalidationBus
+{
+    private final static ConcurrentHashMap<String, List<LocalInvalidationBus>> groups = new ConcurrentHashMap<>();
+
+    private final String group;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final List<Consumer<InvalidationEvent>> subscribers = new CopyOnWriteArrayList<>();
+
+    public LocalInvalidationBus()
+    {
+        this("default");
+    }
+
+    /**
+     * @param group the name of the group of buses to broadcast to
+     */
+    public LocalInvalidationBus(String group)
+    {
+        if (group == null)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        this.group = group;
+        groups.computeIfAbsent(group, (name) -> new CopyOnWriteArrayList<>()).add(this);
+    }
+
+    @Override
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    @Override
+    public void publish(InvalidationEvent event)
+    {
+        for (LocalInvalidationBus bus : groups.getOrDefault(group, List.of()))
+        {
+            if (bus != this)
+            {
+                bus.deliver(event);
+            }
+        }
+    }
+
+    private void deliver(InvalidationEvent event)
+    {
+        for (Consumer<InvalidationEvent> subscriber : subscribers)
+        {
+            subscriber.accept(event);
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<InvalidationEvent> subscriber)
+    {
+        subscribers.add(subscriber);
+    }
+
+    @Override
+    public void close()
+    {
+        groups.computeIfPresent(group, (name, buses) ->
+        {
+            buses.remove(this);
+            return buses.isEmpty() ? null : buses;
+        });
+        subscribers.clear();
+    }
+}
@@ -1,5 +1,7 @@
 package com.centropoly.oxo;
 
+import java.util.concurrent.Callable;
+
 /**
  * OXOContext is intended to be an easy access path to the most important parameters
  * needed in the OXO Framework. It is used by the frameworks inner parts, but can
@@ -13,16 +15,16 @@ package com.centropoly.oxo;
  * End-users are encouraged to extend this class to bring additional functionality
  * to their particular environment. For example, by providing authorization/authentication methods.
  * 
- * TODO: This needs to be redesigned, rethought. There may be an issue here with multiple request interfering
- * with each other. Is a new OXOContext created for each servlet? Or are they shared between servlets.
- * This will cause issues.
+ * The user, request and response are request scoped: they are kept per thread, so that
+ * requests that are served concurrently do not see each other's. Work that is handed off to
+ * another thread (an executor, for example) should be wrapped with #wrap(), so that it runs
+ * in the scope of the request that handed it off. The scope is cleared by OXOServlet once
+ * the request has been served.
  */
 
 public class OXOContext
 {
-    private static User user = null;
-    private static OXORequest request = null;
-    private static OXOResponse response = null;
+    private final static ThreadLocal<Scope> scope = ThreadLocal.withInitial(() -> Scope.EMPTY);
     
     private static String templatesPackage = null;
     private static String propertiesPackage = null;
@@ -31,6 +33,7 @@ public class OXOContext
     // These have defaults.
     private static boolean debug = false;
     private static boolean cache = true;
+    private static boolean templateCache = true;
 
     // Do not allow instantiation.
     protected OXOContext()
@@ -67,36 +70,106 @@ public class OXOContext
         OXOContext.templatesPackage = templatesPackage;
     }
     
-    // Temporary, remove everything below after rewrite.
-    
     public static User getUser()
     {
-        return user;
+        return scope.get().user;
     }
 
     public static void setUser(User user)
     {
-        OXOContext.user = user;
+        Scope current = scope.get();
+        scope.set(new Scope(user, current.request, current.response));
     }
 
     public static OXORequest getRequest()
     {
-        return request;
+        return scope.get().request;
     }
     
     public static void setRequest(OXORequest request)
     {
-        OXOContext.request = request;
+        Scope current = scope.get();
+        scope.set(new Scope(current.user, request, current.response));
     }
 
     public static OXOResponse getResponse()
     {
-        return response;
+        return scope.get().response;
     }
 
     public static void setResponse(OXOResponse response)
     {
-        OXOContext.response = response;
+        Scope current = scope.get();
+        scope.set(new Scope(current.user, current.request, response));
+    }
+
+    /**
+     * Get the scope of the current request, to hand it off to another thread.
+     * 
+     * @return 
+     */
+    public static Scope capture()
+    {
+        return scope.get();
+    }
+
+    /**
+     * Clear the scope of the current request, once it has been served.
+     */
+    public static void clear()
+    {
+        scope.remove();
+    }
+
+    /**
+     * Wrap the given task, so that it runs in the scope of the current request on whichever
+     * thread it is run. The scope of that thread is restored afterwards.
+     * 
+     * @param task
+     * @return 
+     */
+    public static Runnable wrap(Runnable task)
+    {
+        Scope captured = capture();
+        return () ->
+        {
+            Scope previous = scope.get();
+            scope.set(captured);
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                scope.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Wrap the given task, so that it runs in the scope of the current request on whichever
+     * thread it is run. The scope of that thread is restored afterwards.
+     * 
+     * @param <T>
+     * @param task
+     * @return 
+     */
+    public static <T> Callable<T> wrap(Callable<T> task)
+    {
+        Scope captured = capture();
+        return () ->
+        {
+            Scope previous = scope.get();
+            scope.set(captured);
+            try
+            {
+                return task.call();
+            }
+            finally
+            {
+                scope.set(previous);
+            }
+        };
     }
 
     public static boolean debug()
@@ -118,4 +191,49 @@ public class OXOContext
     {
         OXOContext.cache = cache;
     }
+
+    public static boolean templateCache()
+    {
+        return templateCache;
+    }
+
+    public static void templateCache(boolean templateCache)
+    {
+        OXOContext.templateCache = templateCache;
+    }
+
+    /**
+     * The user, request and response of a request. Scopes do not change, setting any of
+     * them replaces the scope of the current thread, so captured scopes are never affected.
+     */
+    public final static class Scope
+    {
+        private final static Scope EMPTY = new Scope(null, null, null);
+
+        private final User user;
+        private final OXORequest request;
+        private final OXOResponse response;
+
+        private Scope(User user, OXORequest request, OXOResponse response)
+        {
+            this.user = user;
+            this.request = request;
+            this.response = response;
+        }
+
+        public User getUser()
+        {
+            return user;
+        }
+
+        public OXORequest getRequest()
+        {
+            return request;
+        }
+
+        public OXOResponse getResponse()
+        {
+            return response;
+        }
+    }
 }
\ No newline at end of file
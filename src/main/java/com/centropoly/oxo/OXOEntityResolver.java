@@ -1,12 +1,17 @@
 package com.centropoly.oxo;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Locale;
 import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.TreeSet;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -22,16 +27,32 @@ public class OXOEntityResolver implements EntityResolver
 {
     private String templatesFolder;
     private String propertiesPackage;
+    private Locale locale;
+    private boolean resolvedProperties = false;
+    private final Set<String> resolvedBundles = new TreeSet<>();
 
     /**
-     * Create an OXOEntityResolver.
+     * Create an OXOEntityResolver. Property entities are resolved for the current user's locale.
      * 
      * @param templatesPackage the package to search for templates
      */
     public OXOEntityResolver(String templatesPackage, String propertiesPackage)
+    {
+        this(templatesPackage, propertiesPackage, null);
+    }
+
+    /**
+     * Create an OXOEntityResolver that resolves property entities for the given locale.
+     * 
+     * @param templatesPackage the package to search for templates
+     * @param propertiesPackage the package to search for property resource bundles
+     * @param locale the locale to resolve property entities for, or null for the current user's locale
+     */
+    public OXOEntityResolver(String templatesPackage, String propertiesPackage, Locale locale)
     {
         this.templatesFolder = templatesPackage.replace(".", "/");
         this.propertiesPackage = propertiesPackage;
+        this.locale = locale;
     }
     
     @Override
@@ -57,7 +78,8 @@ public class OXOEntityResolver implements EntityResolver
                 {
                     if (inputStream != null)
                     {
-                        return new InputSource(inputStream);
+                        // The stream is closed when we return, so read the template into memory first.
+                        return new InputSource(new ByteArrayInputStream(inputStream.readAllBytes()));
                     }
                     else
                     {
@@ -73,8 +95,12 @@ public class OXOEntityResolver implements EntityResolver
                 
                 if (parts.length == 2)
                 {
+                    // Remember that whatever is being parsed now depends on the user's locale.
+                    this.resolvedProperties = true;
+                    this.resolvedBundles.add(propertyBundlePath);
+
                     // The first part reflects the name of the property resource bundle.
-                    ResourceBundle resourceBundle = PropertyResourceBundle.getBundle(propertyBundlePath, OXOContext.getUser().getPreferences().getLocale());
+                    ResourceBundle resourceBundle = PropertyResourceBundle.getBundle(propertyBundlePath, getLocale());
 
                     // The second part should lead us to the desired property inside the property resource bundle.
                     return new InputSource(new StringReader(resourceBundle.getString(parts[1])));
@@ -89,4 +115,42 @@ public class OXOEntityResolver implements EntityResolver
         // Let the parser deal with this entity.
         return null;
     }
+
+    /**
+     * The locale property entities are resolved for.
+     * 
+     * @return 
+     */
+    public Locale getLocale()
+    {
+        if (this.locale == null)
+        {
+            return OXOContext.getUser().getPreferences().getLocale();
+        }
+        else
+        {
+            return this.locale;
+        }
+    }
+
+    /**
+     * Whether this entity resolver has resolved any property entities. If so, the
+     * document(s) it was used for are localized for the current user's locale.
+     * 
+     * @return 
+     */
+    public boolean hasResolvedProperties()
+    {
+        return this.resolvedProperties;
+    }
+
+    /**
+     * The (base names of the) property resource bundles that property entities were resolved from.
+     * 
+     * @return 
+     */
+    public Set<String> getResolvedBundles()
+    {
+        return Collections.unmodifiableSet(this.resolvedBundles);
+    }
 }
\ No newline at end of file
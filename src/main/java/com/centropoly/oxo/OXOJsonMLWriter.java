@@ -0,0 +1,192 @@
+package com.centropoly.oxo;
+
+import com.thoughtworks.xstream.io.AbstractWriter;
+import com.thoughtworks.xstream.io.StreamException;
+import com.thoughtworks.xstream.io.naming.NameCoder;
+import com.thoughtworks.xstream.io.xml.XmlFriendlyNameCoder;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.regex.Pattern;
+
+/**
+ * An XStream writer that writes JSONML directly, following the conventions of the
+ * bundled xmltojsonml.xsl template, so that no XML needs to be generated and transformed.
+ * 
+ * Every element becomes an array containing its name, an object with its attributes (if any)
+ * and its children. Text is written as a number, boolean or null if it looks like one and as
+ * a string otherwise. The JSONML is written as the elements are marshalled.
+ * 
+ * @author Paul van der Maas
+ */
+public class OXOJsonMLWriter extends AbstractWriter
+{
+    // Values that are written as they are instead of as strings (see xmltojsonml.xsl).
+    private final static Pattern LITERAL = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?|true|false|null");
+
+    private final Writer writer;
+    private final String jsonp;
+
+    private int depth = 0;
+    private boolean inAttributes = false;
+
+    /**
+     * Create a JSONML writer.
+     * 
+     * @param writer the writer the JSONML is written to
+     * @param jsonp the JSONP callback to wrap the JSONML in, or null
+     */
+    public OXOJsonMLWriter(Writer writer, String jsonp)
+    {
+        this(writer, jsonp, new XmlFriendlyNameCoder());
+    }
+
+    public OXOJsonMLWriter(Writer writer, String jsonp, NameCoder nameCoder)
+    {
+        super(nameCoder);
+
+        this.writer = writer;
+        this.jsonp = jsonp;
+    }
+
+    @Override
+    public void startNode(String name)
+    {
+        try
+        {
+            if (depth == 0)
+            {
+                if (jsonp != null)
+                {
+                    writer.write(jsonp);
+                    writer.write('(');
+                }
+            }
+            else
+            {
+                closeAttributes();
+                writer.write(',');
+            }
+
+            writer.write('[');
+            writeText(encodeNode(name));
+
+            depth++;
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+
+    @Override
+    public void addAttribute(String name, String value)
+    {
+        try
+        {
+            writer.write(',');
+            if (!inAttributes)
+            {
+                writer.write('{');
+                inAttributes = true;
+            }
+            writeText(encodeAttribute(name));
+            writer.write(':');
+            writeText(value);
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+
+    @Override
+    public void setValue(String text)
+    {
+        try
+        {
+            closeAttributes();
+
+            // Whitespace only text is stripped, as it is in the template.
+            if (!text.trim().isEmpty())
+            {
+                writer.write(',');
+                writeText(text);
+            }
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+
+    @Override
+    public void endNode()
+    {
+        try
+        {
+            closeAttributes();
+
+            writer.write(']');
+
+            depth--;
+
+            if (depth == 0 && jsonp != null)
+            {
+                writer.write(')');
+            }
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+
+    private void closeAttributes() throws IOException
+    {
+        if (inAttributes)
+        {
+            writer.write('}');
+            inAttributes = false;
+        }
+    }
+
+    private void writeText(String text) throws IOException
+    {
+        if (LITERAL.matcher(text).matches())
+        {
+            writer.write(text);
+        }
+        else
+        {
+            writer.write('"');
+            OXOJsonWriter.writeEscaped(writer, text);
+            writer.write('"');
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        try
+        {
+            writer.flush();
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            writer.close();
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.centropoly.oxo;
+
+import com.thoughtworks.xstream.io.AbstractWriter;
+import com.thoughtworks.xstream.io.StreamException;
+import com.thoughtworks.xstream.io.naming.NameCoder;
+import com.thoughtworks.xstream.io.xml.XmlFriendlyNameCoder;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.regex.Pattern;
+
+/**
+ * An XStream writer that writes JSON directly, following the conventions of the
+ * bundled xmltojson.xsl template, so that no XML needs to be generated and transformed.
+ * 
+ * Elements become members of an object, attributes become members as well and
+ * adjacent elements with the same name are grouped in an array (as are single elements
+ * with a json:force-array="true" attribute). Elements that only contain text become
+ * that text, which is written as a number, boolean or null if it looks like one and
+ * as a string otherwise. Empty elements become null.
+ * 
+ * The JSON is written as the elements are marshalled, except that whether an element
+ * is grouped in an array is only known once its next sibling starts (or its parent ends);
+ * until then, the first element of each group is held in memory.
+ * 
+ * @author Paul van der Maas
+ */
+public class OXOJsonWriter extends AbstractWriter
+{
+    // Values that are written as they are instead of as strings (see xmltojson.xsl).
+    private final static Pattern LITERAL = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?|true|false|null");
+
+    private final static String FORCE_ARRAY = "json:force-array";
+
+    private final Writer writer;
+    private final boolean skipRoot;
+    private final String jsonp;
+
+    private final Deque<Node> nodes = new ArrayDeque<>();
+
+    /**
+     * Create a JSON writer.
+     * 
+     * @param writer the writer the JSON is written to
+     * @param skipRoot whether to only write the value of the root element
+     * @param jsonp the JSONP callback to wrap the JSON in, or null
+     */
+    public OXOJsonWriter(Writer writer, boolean skipRoot, String jsonp)
+    {
+        this(writer, skipRoot, jsonp, new XmlFriendlyNameCoder());
+    }
+
+    public OXOJsonWriter(Writer writer, boolean skipRoot, String jsonp, NameCoder nameCoder)
+    {
+        super(nameCoder);
+
+        this.writer = writer;
+        this.skipRoot = skipRoot;
+        this.jsonp = jsonp;
+    }
+
+    @Override
+    public void startNode(String name)
+    {
+        try
+        {
+            Node parent = nodes.peek();
+            Node node;
+            if (parent == null)
+            {
+                node = new Node(encodeNode(name), null, writer);
+
+                if (jsonp != null)
+                {
+                    writer.write(jsonp);
+                    writer.write('(');
+                }
+
+                if (!skipRoot)
+                {
+                    writer.write('{');
+                    writeString(writer, node.name);
+                    writer.write(':');
+                }
+            }
+            else
+            {
+                node = startChild(parent, encodeNode(name));
+            }
+
+            nodes.push(node);
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+
+    // Start a child element, in the array of its group if it is known to be grouped.
+    private Node startChild(Node parent, String name) throws IOException
+    {
+        openObject(parent);
+        parent.hasChildren = true;
+
+        if (name.equals(parent.group))
+        {
+            if (parent.heldMember != null)
+            {
+                openArray(parent);
+            }
+            parent.out.write(',');
+
+            return new Node(name, parent, parent.out);
+        }
+        else
+        {
+            closeGroup(parent);
+
+            // Hold it until it is known whether it is grouped.
+            parent.group = name;
+            parent.heldMember = new StringWriter();
+
+            return new Node(name, parent, parent.heldMember);
+        }
+    }
+
+    @Override
+    public void addAttribute(String name, String value)
+    {
+        try
+        {
+            Node node = nodes.peek();
+            name = encodeAttribute(name);
+
+            if (name.equals(FORCE_ARRAY))
+            {
+                // Attributes come before children, so if it is held, it is still the first of its group.
+                if (value.equals("true") && node.parent != null && node.parent.heldMember == node.out)
+                {
+                    openArray(node.parent);
+                    node.out = node.parent.out;
+                }
+            }
+            else
+            {
+                openObject(node);
+                writeMemberName(node, name);
+                writeText(node.out, value);
+            }
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+
+    @Override
+    public void setValue(String text)
+    {
+        nodes.peek().text.append(text);
+    }
+
+    @Override
+    public void endNode()
+    {
+        try
+        {
+            Node node = nodes.pop();
+
+            // Whitespace only text is stripped, as it is in the template.
+            String text = node.text.toString();
+            boolean hasText = !text.trim().isEmpty();
+
+            if (!node.isObject)
+            {
+                if (hasText)
+                {
+                    writeText(node.out, text);
+                }
+                else
+                {
+                    node.out.write("null");
+                }
+            }
+            else
+            {
+                if (hasText && !node.hasChildren)
+                {
+                    writeMemberName(node, "$");
+                    writeText(node.out, text);
+                }
+                closeGroup(node);
+                node.out.write('}');
+            }
+
+            if (nodes.isEmpty())
+            {
+                if (!skipRoot)
+                {
+                    writer.write('}');
+                }
+
+                if (jsonp != null)
+                {
+                    writer.write(')');
+                }
+            }
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+
+    // Elements with attributes or children are written as objects.
+    private void openObject(Node node) throws IOException
+    {
+        if (!node.isObject)
+        {
+            node.out.write('{');
+            node.isObject = true;
+        }
+    }
+
+    private void writeMemberName(Node node, String name) throws IOException
+    {
+        if (node.hasMembers)
+        {
+            node.out.write(',');
+        }
+        writeString(node.out, name);
+        node.out.write(':');
+        node.hasMembers = true;
+    }
+
+    // The current group of children is an array, write it up to and including the held first element.
+    private void openArray(Node node) throws IOException
+    {
+        writeMemberName(node, node.group);
+        node.out.write('[');
+        node.out.write(node.heldMember.toString());
+        node.heldMember = null;
+        node.isArray = true;
+    }
+
+    // The current group of children has ended.
+    private void closeGroup(Node node) throws IOException
+    {
+        if (node.heldMember != null)
+        {
+            writeMemberName(node, node.group);
+            node.out.write(node.heldMember.toString());
+        }
+        else if (node.isArray)
+        {
+            node.out.write(']');
+        }
+
+        node.group = null;
+        node.heldMember = null;
+        node.isArray = false;
+    }
+
+    private static void writeText(Writer writer, String text) throws IOException
+    {
+        if (LITERAL.matcher(text).matches())
+        {
+            writer.write(text);
+        }
+        else
+        {
+            writeString(writer, text);
+        }
+    }
+
+    private static void writeString(Writer writer, String string) throws IOException
+    {
+        writer.write('"');
+        writeEscaped(writer, string);
+        writer.write('"');
+    }
+
+    /**
+     * Write the given string escaped for use in a JSON string.
+     * 
+     * @param writer
+     * @param string
+     * @throws IOException
+     */
+    static void writeEscaped(Writer writer, String string) throws IOException
+    {
+        for (int i = 0; i < string.length(); i++)
+        {
+            char character = string.charAt(i);
+            switch (character)
+            {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '/':
+                    writer.write("\\/");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (character < 0x20)
+                    {
+                        writer.write(String.format("\\u%04x", (int) character));
+                    }
+                    else
+                    {
+                        writer.write(character);
+                    }
+            }
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        try
+        {
+            writer.flush();
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            writer.close();
+        }
+        catch (IOException exception)
+        {
+            throw new StreamException(exception);
+        }
+    }
+
+    private final static class Node
+    {
+        final String name;
+        final Node parent;
+        final StringBuilder text = new StringBuilder();
+        // Where the value of the element is written: the output, or the held first element of its group.
+        Writer out;
+        boolean isObject = false;
+        boolean hasMembers = false;
+        boolean hasChildren = false;
+
+        // The name of the current group of children, and its first element until it is known whether
+        // the group is an array (null once it is).
+        String group = null;
+        StringWriter heldMember = null;
+        boolean isArray = false;
+
+        Node(String name, Node parent, Writer out)
+        {
+            this.name = name;
+            this.parent = parent;
+            this.out = out;
+        }
+    }
+}
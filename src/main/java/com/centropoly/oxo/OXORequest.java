@@ -8,6 +8,7 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 
@@ -18,8 +19,14 @@ import javax.servlet.http.HttpServletRequestWrapper;
  */
 public class OXORequest extends HttpServletRequestWrapper
 {
+    // The maximum number of keys a data loader loads at once, by default.
+    public final static int DEFAULT_MAXIMUM_BATCH_SIZE = 100;
+
     private Map<String, String[]> dynamicParameters;
 
+    // The data loaders of this request by name, see #getDataLoader().
+    private final Map<String, DataLoader<?, ?>> dataLoaders = new ConcurrentHashMap<>();
+
     public OXORequest(HttpServletRequest request) throws IOException
     {
         super(request);
@@ -37,6 +44,62 @@ public class OXORequest extends HttpServletRequestWrapper
         return new URI(getRequestURI() + ((getQueryString() != null) ? "?" + getQueryString() : ""));
     }
 
+    /**
+     * Get the data loader with the given name, for this request. It is created with the given
+     * batch function the first time it is asked for; later the batch function is ignored.
+     * 
+     * @param <K>
+     * @param <V>
+     * @param name
+     * @param batchFunction
+     * @return
+     */
+    public <K, V> DataLoader<K, V> getDataLoader(String name, DataLoader.BatchFunction<K, V> batchFunction)
+    {
+        return getDataLoader(name, batchFunction, DEFAULT_MAXIMUM_BATCH_SIZE);
+    }
+
+    /**
+     * Get the data loader with the given name, for this request. It is created with the given
+     * batch function and maximum batch size the first time it is asked for; later they are ignored.
+     * 
+     * @param <K>
+     * @param <V>
+     * @param name
+     * @param batchFunction
+     * @param maximumBatchSize
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> DataLoader<K, V> getDataLoader(String name, DataLoader.BatchFunction<K, V> batchFunction, int maximumBatchSize)
+    {
+        if (name == null)
+        {
+            throw new IllegalArgumentException();
+        }
+        return (DataLoader<K, V>) dataLoaders.computeIfAbsent(name, (key) -> new DataLoader<>(batchFunction, maximumBatchSize));
+    }
+
+    /**
+     * Dispatch the data loaders that have keys to load, concurrently, as parts of the given
+     * response (see OXOResponse#joinForks()).
+     * 
+     * @return false if there was nothing to load
+     */
+    boolean dispatchDataLoaders(OXOResponse response)
+    {
+        boolean dispatched = false;
+        for (DataLoader<?, ?> dataLoader : dataLoaders.values())
+        {
+            if (dataLoader.isPending())
+            {
+                response.fork(dataLoader::dispatch);
+                dispatched = true;
+            }
+        }
+        return dispatched;
+    }
+
     /**
      * TODO: One should be able to overwrite request parameters that were set elsewhere
      * as well as dynamic parameters. Simply check dynamic parameters first when 'getting'.
@@ -1,7 +1,14 @@
 package com.centropoly.oxo;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
@@ -25,12 +32,23 @@ public class OXOResponse extends HttpServletResponseWrapper
     private Data data = null;
     private boolean isCommitted = false;
 
+    // Whether the response is written to the client asynchronously (see OXOServlet#writeBody()).
+    private boolean isWrittenAsync = false;
+
+    // Completes the request, if it is asynchronous.
+    private AsyncCompletion asyncCompletion = null;
+
+    // Runs the parts of the data that are built concurrently (see Data#buildConcurrently()).
+    private Executor buildExecutor = null;
+    private final List<Future<?>> forks = new ArrayList<>();
+
     public OXOResponse(HttpServletResponse response)
     {
         super(response);
 
-        this.exceptions = new ArrayList<Exception>();
-        this.notifications = new ArrayList<Notification>();
+        // Parts of the data that are built concurrently may add these.
+        this.exceptions = Collections.synchronizedList(new ArrayList<Exception>());
+        this.notifications = Collections.synchronizedList(new ArrayList<Notification>());
     }
 
     public void setData(Data data) {
@@ -69,6 +87,108 @@ public class OXOResponse extends HttpServletResponseWrapper
         this.isCommitted = isCommitted;
     }
 
+    boolean isWrittenAsync()
+    {
+        return this.isWrittenAsync;
+    }
+
+    void isWrittenAsync(boolean isWrittenAsync)
+    {
+        this.isWrittenAsync = isWrittenAsync;
+    }
+
+    AsyncCompletion getAsyncCompletion()
+    {
+        return this.asyncCompletion;
+    }
+
+    void setAsyncCompletion(AsyncCompletion asyncCompletion)
+    {
+        this.asyncCompletion = asyncCompletion;
+    }
+
+    /**
+     * Check whether the (asynchronous) request has been completed, timed out or failed, after
+     * which nothing may be written to the response anymore, not even its status or headers.
+     */
+    boolean isFinished()
+    {
+        return this.asyncCompletion != null && this.asyncCompletion.isFinished();
+    }
+
+    void setBuildExecutor(Executor buildExecutor)
+    {
+        this.buildExecutor = buildExecutor;
+    }
+
+    /**
+     * Run the given task concurrently, in the scope of the current request. It is
+     * joined by #joinForks(), before the response is written.
+     */
+    <V> Future<V> fork(Callable<V> task)
+    {
+        FutureTask<V> future = new FutureTask<>(OXOContext.wrap(task));
+        synchronized (forks)
+        {
+            forks.add(future);
+        }
+
+        if (buildExecutor != null)
+        {
+            try
+            {
+                buildExecutor.execute(future);
+            }
+            catch (RejectedExecutionException exception)
+            {
+                future.run();
+            }
+        }
+        else
+        {
+            future.run();
+        }
+
+        return future;
+    }
+
+    /**
+     * Wait for all tasks that were forked for this response, including those forked by forked
+     * tasks. Tasks that failed add their exception to the response.
+     */
+    void joinForks()
+    {
+        for (int i = 0; ; i++)
+        {
+            Future<?> fork;
+            synchronized (forks)
+            {
+                if (i == forks.size())
+                {
+                    forks.clear();
+                    return;
+                }
+                fork = forks.get(i);
+            }
+
+            try
+            {
+                fork.get();
+            }
+            catch (ExecutionException exception)
+            {
+                Throwable cause = exception.getCause();
+                addException((cause instanceof Exception) ? (Exception) cause : exception);
+            }
+            catch (InterruptedException exception)
+            {
+                Thread.currentThread().interrupt();
+                addException(exception);
+                fork.cancel(true);
+            }
+        }
+    }
+
     public OXORequest getRequest() {
         return OXOContext.getRequest();
     }
@@ -1,18 +1,28 @@
 package com.centropoly.oxo;
 
 import com.centropoly.oxo.CachedResponseManager.CachedResponse;
-import com.centropoly.oxo.converters.OXOResponseConverter;
-import com.centropoly.oxo.converters.OXORequestConverter;
-import com.centropoly.oxo.converters.ClientConverter;
-import com.centropoly.oxo.converters.DateTimeConverter;
-import com.centropoly.oxo.converters.LocaleConverter;
-import com.centropoly.oxo.converters.NullWrappingCollectionConverter;
 import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.DomDriver;
 import com.thoughtworks.xstream.io.xml.TraxSource;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
@@ -20,17 +30,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.XMLReaderFactory;
 
 /**
  * To enable us to localize the templates that are used to transform the XML representation of the response into output, we will use entities.
@@ -49,6 +55,45 @@ public abstract class OXOServlet extends HttpServlet
     private final static Logger logger = LogManager.getLogger(OXOServlet.class);
 
     protected final CachedResponseManager cachedResponseManager = new CachedResponseManager();
+
+    // How long, in milliseconds, a request waits for output from another request that is priming the cache.
+    private long cachePrimingTimeout = 10000;
+
+    // How long, in milliseconds, an expired cached response may still be served while it is rebuilt.
+    private long cacheGracePeriod = 0;
+
+    // How long, in milliseconds, before it expires a frequently requested cached response is rebuilt,
+    // and how often it must have been requested since it was cached.
+    private long cacheRefreshAhead = 0;
+    private int cacheRefreshAheadHits = 10;
+
+    // Whether to buffer responses that are not cached, so that they can have an entity tag as well.
+    private boolean eTags = false;
+
+    // Whether responses are written to clients asynchronously, see #service().
+    private boolean async = false;
+
+    // The timeout of asynchronous requests in milliseconds, or -1 for the container's default.
+    private long asyncTimeout = -1;
+
+    // Processes requests off the container threads, if so configured; at most as many at once as there are permits.
+    private ExecutorService processingExecutor = null;
+    private Semaphore processingPermits = null;
+
+    // Builds the parts of response data that are built concurrently, see Data#buildConcurrently().
+    // It is created when it is first needed, see #getBuildExecutor().
+    private volatile ExecutorService buildExecutor = null;
+    private final Executor lazyBuildExecutor = (task) -> getBuildExecutor().execute(task);
+    private int buildThreads = 16;
+
+    // Rebuilds cached responses in the background, if there is a grace period or refresh-ahead.
+    private ExecutorService cacheRefreshExecutor = null;
+
+    // Compiled templates are shared by all servlets.
+    protected final static TemplateManager templateManager = new TemplateManager();
+
+    // Configured XStream instances are shared by all servlets.
+    protected final static XStreamManager xStreamManager = new XStreamManager();
     
     /**
      * This method is called only once when a servlet is being put into service 
@@ -112,9 +157,424 @@ public abstract class OXOServlet extends HttpServlet
             OXOContext.cache(Boolean.parseBoolean(cache));
         }
 
+        // The maximum total size of the cached responses of this servlet, in bytes
+        // or with a K, M or G suffix (e.g. 256M).
+        String cacheSize = System.getProperty("CACHE_SIZE", this.getServletContext().getInitParameter("cacheSize"));
+        if (cacheSize != null) {
+            cachedResponseManager.setMaximumWeight(parseSize(cacheSize));
+        }
+
+        // Where to keep cached responses: on the heap (heap, the default) or outside of it (offheap).
+        // Off-heap storage allows for large caches without growing the heap or garbage collection pauses.
+        String cacheStorage = System.getProperty("CACHE_STORAGE", this.getServletContext().getInitParameter("cacheStorage"));
+        if (cacheStorage != null) {
+            cachedResponseManager.setOffHeap(cacheStorage.trim().equalsIgnoreCase("offheap"));
+        }
+
+        // Responses get a strong entity tag (ETag), so that clients can revalidate them with If-None-Match.
+        // Cached responses always do; with etag set to true, other GET responses are buffered in memory to get one as well.
+        String eTag = System.getProperty("ETAG", this.getServletContext().getInitParameter("etag"));
+        if (eTag != null) {
+            eTags = Boolean.parseBoolean(eTag);
+        }
+
+        // Compression of cached responses: none (the default), gzip (a compressed variant is cached as well,
+        // for clients that accept it) or gzip-only (only the compressed variant is cached, to save memory).
+        String cacheCompression = System.getProperty("CACHE_COMPRESSION", this.getServletContext().getInitParameter("cacheCompression"));
+        if (cacheCompression != null) {
+            cachedResponseManager.setCompression(CachedResponseManager.Compression.fromString(cacheCompression));
+        }
+
+        // Which requests share a cached response: the class name of a CacheKeyStrategy with a public
+        // no-argument constructor. By default, responses are cached per URL, locale and output format,
+        // and per value of the (comma separated) request headers in cacheVaryHeaders. The parameters
+        // in cacheIgnoredParameters (comma separated, * is a wildcard) are left out of the URL; by
+        // default these are the usual tracking parameters (utm_*, fbclid, gclid).
+        String cacheKeyStrategy = System.getProperty("CACHE_KEY_STRATEGY", this.getServletContext().getInitParameter("cacheKeyStrategy"));
+        if (cacheKeyStrategy != null) {
+            cachedResponseManager.setCacheKeyStrategy(createCacheKeyStrategy(cacheKeyStrategy.trim()));
+        }
+        else
+        {
+            String cacheVaryHeaders = System.getProperty("CACHE_VARY_HEADERS", this.getServletContext().getInitParameter("cacheVaryHeaders"));
+            String cacheIgnoredParameters = System.getProperty("CACHE_IGNORED_PARAMETERS", this.getServletContext().getInitParameter("cacheIgnoredParameters"));
+            if (cacheVaryHeaders != null || cacheIgnoredParameters != null) {
+                List<String> headers = (cacheVaryHeaders != null) ? parseList(cacheVaryHeaders) : new ArrayList<>();
+                CacheKeyNormalizer normalizer = (cacheIgnoredParameters != null) ? new CacheKeyNormalizer(parseList(cacheIgnoredParameters)) : new CacheKeyNormalizer();
+                cachedResponseManager.setCacheKeyStrategy(new DefaultCacheKeyStrategy(headers, normalizer));
+            }
+        }
+
+        // Responses evicted from memory are moved to disk if a directory is given (a subdirectory per servlet).
+        // The disk cache survives restarts. It holds at most cacheDiskSize bytes (1G by default, suffixes as for cacheSize).
+        String cacheDirectory = System.getProperty("CACHE_DIRECTORY", this.getServletContext().getInitParameter("cacheDirectory"));
+        if (cacheDirectory != null) {
+            String cacheDiskSize = System.getProperty("CACHE_DISK_SIZE", this.getServletContext().getInitParameter("cacheDiskSize"));
+            cachedResponseManager.setDiskCache(new File(cacheDirectory, getServletName()), (cacheDiskSize != null) ? parseSize(cacheDiskSize) : 1024L * 1024 * 1024);
+        }
+
+        // The maximum time, in milliseconds, that requests for a response that is being
+        // cached wait for (more of) it. Requests that time out respond without the cache.
+        String cachePrimingTimeout = System.getProperty("CACHE_PRIMING_TIMEOUT", this.getServletContext().getInitParameter("cachePrimingTimeout"));
+        if (cachePrimingTimeout != null) {
+            this.cachePrimingTimeout = Long.parseLong(cachePrimingTimeout);
+        }
+
+        // Expired cached responses are served for this long (in milliseconds) while they are rebuilt
+        // in the background, so that no request has to wait for the rebuild.
+        String cacheGracePeriod = System.getProperty("CACHE_GRACE_PERIOD", this.getServletContext().getInitParameter("cacheGracePeriod"));
+        if (cacheGracePeriod != null) {
+            this.cacheGracePeriod = Long.parseLong(cacheGracePeriod);
+        }
+
+        // Cached responses that were requested at least cacheRefreshAheadHits times are rebuilt in the
+        // background this long (in milliseconds) before they expire, so that they do not expire at all.
+        String cacheRefreshAhead = System.getProperty("CACHE_REFRESH_AHEAD", this.getServletContext().getInitParameter("cacheRefreshAhead"));
+        if (cacheRefreshAhead != null) {
+            this.cacheRefreshAhead = Long.parseLong(cacheRefreshAhead);
+        }
+        String cacheRefreshAheadHits = System.getProperty("CACHE_REFRESH_AHEAD_HITS", this.getServletContext().getInitParameter("cacheRefreshAheadHits"));
+        if (cacheRefreshAheadHits != null) {
+            this.cacheRefreshAheadHits = Integer.parseInt(cacheRefreshAheadHits);
+        }
+
+        if (this.cacheGracePeriod > 0 || this.cacheRefreshAhead > 0)
+        {
+            String cacheRefreshThreads = System.getProperty("CACHE_REFRESH_THREADS", this.getServletContext().getInitParameter("cacheRefreshThreads"));
+            cacheRefreshExecutor = createCacheRefreshExecutor((cacheRefreshThreads != null) ? Integer.parseInt(cacheRefreshThreads) : 2);
+        }
+
+        // Cached responses of this servlet can be invalidated through CacheInvalidator.
+        CacheInvalidator.register(cachedResponseManager);
+
+        // In a cluster, invalidations are broadcast to the other nodes through an invalidation bus:
+        // udp (on cacheInvalidationPort, 4446 by default, to the comma separated host:port addresses in
+        // cacheInvalidationPeers), local (within the JVM) or the class name of an InvalidationBus with
+        // a public no-argument constructor. There is one bus for all servlets.
+        String cacheInvalidationBus = System.getProperty("CACHE_INVALIDATION_BUS", this.getServletContext().getInitParameter("cacheInvalidationBus"));
+        if (cacheInvalidationBus != null) {
+            CacheInvalidator.setInvalidationBusIfAbsent(() -> createInvalidationBus(cacheInvalidationBus.trim()));
+        }
+
+        // In async mode, responses are written from memory to clients without blocking a thread,
+        // so that slow clients do not hold on to one. The container must support async for this servlet.
+        String async = System.getProperty("ASYNC", this.getServletContext().getInitParameter("async"));
+        if (async != null) {
+            this.async = Boolean.parseBoolean(async);
+        }
+
+        // Process requests on virtual threads (Java 21 and later; a bounded thread pool otherwise), so that
+        // requests that block on I/O do not hold on to container threads. At most processingConcurrency
+        // (256 by default) requests are processed at once. The container must support async for this servlet,
+        // and its async timeout applies to requests as a whole.
+        String virtualThreads = System.getProperty("VIRTUAL_THREADS", this.getServletContext().getInitParameter("virtualThreads"));
+        if (virtualThreads != null && Boolean.parseBoolean(virtualThreads))
+        {
+            String processingConcurrency = System.getProperty("PROCESSING_CONCURRENCY", this.getServletContext().getInitParameter("processingConcurrency"));
+            int concurrency = (processingConcurrency != null) ? Integer.parseInt(processingConcurrency.trim()) : 256;
+
+            processingPermits = new Semaphore(concurrency);
+            // Requests beyond the queue are processed on the container thread.
+            processingExecutor = createExecutor("OXO processing", concurrency, concurrency);
+        }
+
+        // The timeout (in milliseconds, 0 for none) of asynchronous requests, in async mode and with virtual
+        // threads. It covers the request as a whole, processing included. Defaults to the container's.
+        String asyncTimeout = System.getProperty("ASYNC_TIMEOUT", this.getServletContext().getInitParameter("asyncTimeout"));
+        if (asyncTimeout != null) {
+            this.asyncTimeout = Long.parseLong(asyncTimeout.trim());
+        }
+
+        // The parts of response data that are built concurrently are built on virtual threads (Java 21
+        // and later), or a pool of buildThreads (16 by default) threads otherwise.
+        String buildThreads = System.getProperty("BUILD_THREADS", this.getServletContext().getInitParameter("buildThreads"));
+        if (buildThreads != null) {
+            this.buildThreads = Integer.parseInt(buildThreads.trim());
+        }
+
+        // Turns caching of compiled templates on or off globally. Turning it off
+        // allows templates to be modified without redeploying during development.
+        String templateCache = System.getProperty("TEMPLATE_CACHE", this.getServletContext().getInitParameter("templateCache"));
+        if (templateCache != null) {
+            OXOContext.templateCache(Boolean.parseBoolean(templateCache));
+        }
+
+        // The maximum number of compiled (template, locale) pairs for localized templates.
+        String templateCacheSize = System.getProperty("TEMPLATE_CACHE_SIZE", this.getServletContext().getInitParameter("templateCacheSize"));
+        if (templateCacheSize != null) {
+            templateManager.setMaximumLocalizedTemplates(Integer.parseInt(templateCacheSize));
+        }
+
+        // Use translets, templates compiled into Java classes ahead of time, if so requested (see TransletCompiler).
+        String translets = System.getProperty("TRANSLETS", this.getServletContext().getInitParameter("translets"));
+        if (translets != null && Boolean.parseBoolean(translets))
+        {
+            String transletsPackage = System.getProperty("TRANSLETS_PACKAGE", this.getServletContext().getInitParameter("transletsPackage"));
+            templateManager.setTransletsPackage((transletsPackage != null) ? transletsPackage : TransletCompiler.getDefaultTransletsPackage(templatesPackage));
+        }
+
+        // Optionally compile all templates before the servlet is put into service, so that
+        // the first requests after a (re)deploy do not have to wait for them to be compiled.
+        String precompileTemplates = System.getProperty("PRECOMPILE_TEMPLATES", this.getServletContext().getInitParameter("precompileTemplates"));
+        if (precompileTemplates != null && Boolean.parseBoolean(precompileTemplates) && OXOContext.templateCache())
+        {
+            precompileTemplates();
+        }
+
         logger.debug("OXOServlet.init()");
     }
 
+    /**
+     * Releases the resources held by this servlet when it is taken out of service.
+     * 
+     * Overriding implementations of this method must call the super implementation.
+     */
+    @Override
+    public void destroy()
+    {
+        if (cacheRefreshExecutor != null)
+        {
+            cacheRefreshExecutor.shutdownNow();
+        }
+
+        if (processingExecutor != null)
+        {
+            processingExecutor.shutdown();
+        }
+
+        if (buildExecutor != null)
+        {
+            buildExecutor.shutdown();
+        }
+
+        CacheInvalidator.unregister(cachedResponseManager);
+        cachedResponseManager.close();
+
+        super.destroy();
+    }
+
+    private ExecutorService createCacheRefreshExecutor(int threads)
+    {
+        String threadName = "OXO cache refresh (" + getServletName() + ")";
+
+        // A small queue; if cached responses cannot be rebuilt fast enough, they are rebuilt
+        // by requests (after the grace period) instead.
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(256), (runnable) ->
+        {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create an executor that runs each task on a new virtual thread, if the JVM supports
+     * them (Java 21 and later), or a pool of the given number of threads otherwise.
+     * 
+     * @param name the name of the pool's threads
+     * @param threads
+     * @param queueSize the number of tasks the pool queues; more are rejected
+     */
+    private ExecutorService createExecutor(String name, int threads, int queueSize)
+    {
+        try
+        {
+            // Looked up reflectively, so that this compiles for (and runs on) Java 17.
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException exception)
+        {
+            logger.info("Virtual threads are not available, " + name + " uses a pool of " + threads + " threads.");
+
+            String threadName = name + " (" + getServletName() + ")";
+
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), (runnable) ->
+            {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    // Create the build executor when it is first needed, as most data is not built concurrently.
+    private ExecutorService getBuildExecutor()
+    {
+        ExecutorService buildExecutor = this.buildExecutor;
+        if (buildExecutor == null)
+        {
+            synchronized (this)
+            {
+                buildExecutor = this.buildExecutor;
+                if (buildExecutor == null)
+                {
+                    // Parts that do not fit in the queue are built by the request itself.
+                    buildExecutor = createExecutor("OXO build", buildThreads, buildThreads * 16);
+                    this.buildExecutor = buildExecutor;
+                }
+            }
+        }
+        return buildExecutor;
+    }
+
+    private CacheKeyStrategy createCacheKeyStrategy(String className)
+    {
+        try
+        {
+            return Class.forName(className, true, getClass().getClassLoader()).asSubclass(CacheKeyStrategy.class).getConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException exception)
+        {
+            throw new IllegalArgumentException("The cache key strategy " + className + " could not be created.", exception);
+        }
+    }
+
+    private InvalidationBus createInvalidationBus(String type)
+    {
+        if (type.equalsIgnoreCase("local"))
+        {
+            return new LocalInvalidationBus();
+        }
+        else if (type.equalsIgnoreCase("udp"))
+        {
+            String cacheInvalidationPort = System.getProperty("CACHE_INVALIDATION_PORT", this.getServletContext().getInitParameter("cacheInvalidationPort"));
+            String cacheInvalidationPeers = System.getProperty("CACHE_INVALIDATION_PEERS", this.getServletContext().getInitParameter("cacheInvalidationPeers"));
+
+            List<InetSocketAddress> peers = new ArrayList<>();
+            if (cacheInvalidationPeers != null)
+            {
+                for (String peer : parseList(cacheInvalidationPeers))
+                {
+                    int separator = peer.lastIndexOf(':');
+                    if (separator == -1)
+                    {
+                        throw new IllegalArgumentException("The cache invalidation peer " + peer + " has no port.");
+                    }
+                    peers.add(new InetSocketAddress(peer.substring(0, separator), Integer.parseInt(peer.substring(separator + 1))));
+                }
+            }
+
+            try
+            {
+                return new UdpInvalidationBus((cacheInvalidationPort != null) ? Integer.parseInt(cacheInvalidationPort.trim()) : 4446, peers);
+            }
+            catch (SocketException exception)
+            {
+                // Cached responses are still invalidated on this node.
+                logger.error("The cache invalidation bus could not be opened.", exception);
+                return null;
+            }
+        }
+        else
+        {
+            try
+            {
+                return Class.forName(type, true, getClass().getClassLoader()).asSubclass(InvalidationBus.class).getConstructor().newInstance();
+            }
+            catch (ReflectiveOperationException | ClassCastException exception)
+            {
+                throw new IllegalArgumentException("The cache invalidation bus " + type + " could not be created.", exception);
+            }
+        }
+    }
+
+    // Parse a comma separated list, leaving out empty elements.
+    private static List<String> parseList(String list)
+    {
+        List<String> elements = new ArrayList<>();
+        for (String element : list.split(","))
+        {
+            if (!element.trim().isEmpty())
+            {
+                elements.add(element.trim());
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Parse a size in bytes, optionally followed by a K, M or G suffix.
+     * 
+     * @param size
+     * @return 
+     */
+    protected static long parseSize(String size)
+    {
+        size = size.trim().toUpperCase();
+
+        long multiplier = 1;
+        if (size.endsWith("K"))
+        {
+            multiplier = 1024L;
+        }
+        else if (size.endsWith("M"))
+        {
+            multiplier = 1024L * 1024;
+        }
+        else if (size.endsWith("G"))
+        {
+            multiplier = 1024L * 1024 * 1024;
+        }
+
+        if (multiplier != 1)
+        {
+            size = size.substring(0, size.length() - 1).trim();
+        }
+
+        return Long.parseLong(size) * multiplier;
+    }
+
+    /**
+     * Compile all templates in the templates package for all locales listed in the
+     * (comma separated) locales parameter, or the default locale if there is none.
+     * Templates that fail to compile are reported here instead of on first use, and
+     * the servlet is not put into service.
+     */
+    private void precompileTemplates()
+    {
+        List<Locale> locales = new ArrayList<>();
+
+        String localeTags = System.getProperty("LOCALES", this.getServletContext().getInitParameter("locales"));
+        if (localeTags != null)
+        {
+            for (String localeTag : localeTags.split(","))
+            {
+                if (!localeTag.trim().isEmpty())
+                {
+                    locales.add(Locale.forLanguageTag(localeTag.trim()));
+                }
+            }
+        }
+        if (locales.isEmpty())
+        {
+            locales.add(Locale.getDefault());
+        }
+
+        try
+        {
+            long start = System.currentTimeMillis();
+
+            Map<String, Exception> failures = templateManager.precompile(locales);
+            for (Map.Entry<String, Exception> failure : failures.entrySet())
+            {
+                logger.error("The template " + failure.getKey() + " could not be compiled.", failure.getValue());
+            }
+
+            logger.info("Templates were compiled in " + (System.currentTimeMillis() - start) + "ms, " + failures.size() + " failed.");
+
+            if (!failures.isEmpty())
+            {
+                throw new IllegalStateException(failures.size() + " templates could not be compiled: " + failures.keySet());
+            }
+        }
+        catch (IOException exception)
+        {
+            logger.error("The templates could not be compiled.", exception);
+        }
+    }
+
     /**
      * This method is called once per request/response cycle and can be used to
      * perform 'local' servlet initialization tasks (initialize context).
@@ -137,6 +597,8 @@ public abstract class OXOServlet extends HttpServlet
         OXOContext.setRequest(request);
         OXOContext.setResponse(response);
         OXOContext.setUser(new User(new Client(request, response)));
+
+        response.setBuildExecutor(lazyBuildExecutor);
     }
 
     /**
@@ -144,6 +606,17 @@ public abstract class OXOServlet extends HttpServlet
      * and <code>POST</code> methods.
      * 
      * This falls back on the super implementation for all other request methods.
+     * 
+     * In async mode, the response is written to memory (or taken from the cache) and then
+     * written to the client asynchronously, see AsyncResponseWriter. Responses that are
+     * written otherwise (errors, for example) are completed once they have been handled.
+     * 
+     * With virtual threads, requests are initialized, processed and built on a virtual
+     * thread (or a thread of a bounded pool, before Java 21) instead of on the container
+     * thread, and their responses are written asynchronously as in async mode.
+     * 
+     * The async timeout (asyncTimeout, or the container's) covers processing as well; once a
+     * request has timed out, the container completes it and its response is no longer written.
      *
      * @param request
      * @param response
@@ -158,14 +631,30 @@ public abstract class OXOServlet extends HttpServlet
         String method = request.getMethod();
         if (method.equals("GET") || method.equals("POST"))
         {
+            AsyncCompletion asyncCompletion = ((async || processingExecutor != null) && request.isAsyncSupported()) ? AsyncCompletion.start(request, asyncTimeout) : null;
+
             // Wrap the request and response.
             OXORequest oxoRequest = new OXORequest(request);
             OXOResponse oxoResponse = new OXOResponse(response);
+            oxoResponse.setAsyncCompletion(asyncCompletion);
 
-            // Perform request specific initialization.
-            init(oxoRequest, oxoResponse);
-
-            handleRequest(oxoRequest, oxoResponse);
+            if (asyncCompletion != null && processingExecutor != null)
+            {
+                // Process the request on another thread, releasing the container thread right away.
+                try
+                {
+                    processingExecutor.execute(() -> processAsync(oxoRequest, oxoResponse));
+                }
+                catch (RejectedExecutionException exception)
+                {
+                    // Overloaded, process it on the container thread instead.
+                    serve(oxoRequest, oxoResponse);
+                }
+            }
+            else
+            {
+                serve(oxoRequest, oxoResponse);
+            }
         }
         else
         {
@@ -174,6 +663,73 @@ public abstract class OXOServlet extends HttpServlet
         }
     }
 
+    private void processAsync(OXORequest request, OXOResponse response)
+    {
+        try
+        {
+            serve(request, response);
+        }
+        catch (IOException exception)
+        {
+            logger.debug("The response to " + request.getServletPath() + " could not be written.", exception);
+        }
+        catch (RuntimeException exception)
+        {
+            // Nothing else would see it, this is not a container thread.
+            logger.error("The request for " + request.getServletPath() + " could not be processed.", exception);
+        }
+    }
+
+    /**
+     * Initialize and handle a request, then complete it if it is asynchronous and its response
+     * is not being written asynchronously.
+     */
+    private void serve(OXORequest request, OXOResponse response) throws IOException
+    {
+        boolean permitted = false;
+        try
+        {
+            if (processingPermits != null)
+            {
+                try
+                {
+                    processingPermits.acquire();
+                    permitted = true;
+                }
+                catch (InterruptedException exception)
+                {
+                    Thread.currentThread().interrupt();
+                    if (!response.isFinished())
+                    {
+                        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    }
+                    return;
+                }
+            }
+
+            // Perform request specific initialization.
+            init(request, response);
+
+            handleRequest(request, response);
+        }
+        finally
+        {
+            // The thread will serve other requests.
+            OXOContext.clear();
+
+            if (permitted)
+            {
+                processingPermits.release();
+            }
+
+            // Unless it has timed out or failed already, in which case the container completes it.
+            if (response.getAsyncCompletion() != null && !response.isWrittenAsync())
+            {
+                response.getAsyncCompletion().complete();
+            }
+        }
+    }
+
     /**
      * Handle requests for both HTTP <code>GET</code> and <code>POST</code> methods.
      *
@@ -233,67 +789,337 @@ public abstract class OXOServlet extends HttpServlet
         // It may have already been 'written' by #processRequest(), for instance.
         // One case of this would be if the required action is a redirect or if output has been written
         // directly to the output stream for debugging or other purposes.
-        if (!response.isCommitted())
+        // Nor should it if the request timed out or failed while it was being processed.
+        if (!response.isCommitted() && !response.isFinished())
         {
             OutputStream outputStream;
             
             if (useCache(request, response))
             {
                 logger.debug("OXOServlet.outputResponse() -> use cache " + request.getServletPath());
+                cachedResponseManager.recordAccess(request, response);
+
                 if (useClientCache(request, response))
                 {
                     logger.debug("OXOServlet.outputResponse() -> use client cache " + request.getServletPath());
+                    setResponseVaryHeaders(request, response);
                     response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
                     
                     // No further action needed.
                     return;
                 }
-                else if (useServerCache(request, response))
+
+                // Looked up once, as it may be evicted or invalidated at any time.
+                CachedResponse cachedResponse = cachedResponseManager.getCachedResponse(request, response);
+                if (useServerCache(request, response, cachedResponse))
                 {
                     logger.debug("OXOServlet.outputResponse() -> use server cache " + request.getServletPath());
-                    outputCachedResponse(request, response);
+                    if (refreshServerCacheAhead(request, response, cachedResponse))
+                    {
+                        refreshCachedResponse(request, response);
+                    }
+                    outputCachedResponse(request, response, cachedResponse);
+
+                    // No further action needed, #outputCachedResponse() 'commits' the response.
+                    return;
+                }
+                else if (useStaleServerCache(request, response, cachedResponse))
+                {
+                    logger.debug("OXOServlet.outputResponse() -> use stale server cache " + request.getServletPath());
+                    refreshCachedResponse(request, response);
+                    outputCachedResponse(request, response, cachedResponse);
+
+                    // No further action needed, #outputCachedResponse() 'commits' the response.
+                    return;
+                }
+                else
+                {
+                    CachedOutputStream cachedOutputStream = createCachedOutputStreamForResponse(request, response);
+                    if (cachedOutputStream != null) // Prime server cache.
+                    {
+                        logger.debug("OXOServlet.outputResponse() -> prime/use server cache " + request.getServletPath());
+                        outputStream = cachedOutputStream;
+                    }
+                    else if (outputPendingCachedResponse(request, response)) // Another request is priming the server cache.
+                    {
+                        logger.debug("OXOServlet.outputResponse() -> use pending server cache " + request.getServletPath());
+
+                        // No further action needed, #outputPendingCachedResponse() 'commits' the response.
+                        return;
+                    }
+                    else
+                    {
+                        logger.debug("OXOServlet.outputResponse() -> server cache not primed in time " + request.getServletPath());
+                        outputStream = createUncachedOutputStream(request, response);
+                    }
+                }
+            }
+            else
+            {
+                logger.debug("OXOServlet.outputResponse() -> do not use cache " + request.getServletPath());
+                outputStream = createUncachedOutputStream(request, response);
+            }
+
+            if (writeResponse(request, response, outputStream) && outputStream instanceof CachedOutputStream)
+            {
+                // The response was written to memory without waiting for the client, now send it.
+                outputBufferedResponse(request, response, (CachedOutputStream) outputStream);
+            }
+        }
+    }
+
+    /**
+     * Get the output stream to write a response that is not cached to. It is buffered in memory
+     * (but not cached) so that the entity tag is known before the response is sent, or so that it
+     * can be written asynchronously (and not at all if the request times out in the meantime).
+     */
+    private OutputStream createUncachedOutputStream(OXORequest request, OXOResponse response) throws IOException
+    {
+        if ((eTags && request.getMethod().equals("GET")) || response.getAsyncCompletion() != null)
+        {
+            return new CachedOutputStream(response, false, eTags && request.getMethod().equals("GET"));
+        }
+        else
+        {
+            return response.getOutputStream();
+        }
+    }
+
+    /**
+     * Send a completely written response from memory, or only its entity tag if the client
+     * already has it.
+     * 
+     * @param request
+     * @param response
+     * @param outputStream
+     * @throws IOException 
+     */
+    protected void outputBufferedResponse(OXORequest request, OXOResponse response, CachedOutputStream outputStream) throws IOException
+    {
+        if (response.isFinished())
+        {
+            return; // Timed out or failed while it was being written, the container has completed it.
+        }
+
+        if (outputStream.getETag() != null)
+        {
+            response.setHeader("ETag", outputStream.getETag());
+            if (matchesETag(request, outputStream.getETag()))
+            {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
+        response.setContentLengthLong(outputStream.size());
+        writeBody(request, response, outputStream, 0);
+    }
+
+    /**
+     * Write a response from memory to the client, asynchronously in async mode.
+     * 
+     * @param request
+     * @param response
+     * @param body the response, which may still be being written
+     * @param timeout the maximum time to wait for more of the response in milliseconds, or 0 to
+     * wait indefinitely; in async mode, the timeout of the asynchronous request applies instead
+     * @throws IOException 
+     */
+    protected void writeBody(OXORequest request, OXOResponse response, CachedOutputStream body, long timeout) throws IOException
+    {
+        AsyncCompletion asyncCompletion = response.getAsyncCompletion();
+        if (asyncCompletion != null)
+        {
+            if (asyncCompletion.isFinished())
+            {
+                return; // Timed out or failed, the container has completed it.
+            }
+
+            response.isWrittenAsync(true);
+            AsyncResponseWriter.start(asyncCompletion, response, body);
+        }
+        else
+        {
+            body.writeTo(response.getOutputStream(), timeout);
+        }
+    }
+
+    /**
+     * Check whether the entity tag matches the If-None-Match header of the request,
+     * in which case the client already has the response. As If-None-Match is used
+     * for GET requests only, weak comparison is used (W/ prefixes are ignored).
+     * 
+     * @param request
+     * @param eTags the entity tags of the (variants of the) response
+     * @return 
+     */
+    protected static boolean matchesETag(OXORequest request, String... eTags)
+    {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null)
+        {
+            return false;
+        }
+
+        for (String element : ifNoneMatch.split(","))
+        {
+            String tag = element.trim();
+            if (tag.equals("*"))
+            {
+                return true;
+            }
+            if (tag.startsWith("W/"))
+            {
+                tag = tag.substring(2);
+            }
+
+            for (String eTag : eTags)
+            {
+                if (eTag != null && eTag.equals(tag))
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Build the response data, then write the (transformed) result to the given output stream.
+     * If the output stream is a cached output stream, the cached response is completed once
+     * it has been written successfully and discarded otherwise.
+     * 
+     * @return false if the response was committed (written directly) while building the data
+     */
+    private boolean writeResponse(OXORequest request, OXOResponse response, OutputStream outputStream) throws IOException, SAXException, TransformerException, ReflectiveOperationException
+    {
+        boolean primed = false;
+        try
+        {
+            Data data = response.getData();
+            if (data != null)
+            {
+                // Build out the data object.
+                try
+                {
+                    // Data should call #response.isCommitted(true) if it produces the output directly.
+                    data.build(request, response);
+                }
+                catch(Exception exception)
+                {
+                    outputException(response, new Exception("An unhandled exception occurred while building the response data.", exception));
+                }
+
+                // Wait for the parts of the data that are built concurrently, and load what
+                // was asked of data loaders (which may ask for more), until nothing is left.
+                do
+                {
+                    response.joinForks();
+                }
+                while (request.dispatchDataLoaders(response));
+            }            
+
+            if (!response.isCommitted())
+            {
+                // Write output to the given outputstream transformed or untransformed.
+                if (response.getTransformationOutputType() != null)
+                {
+                    writeTransformedXMLToOutputStream(request, response, outputStream);
+                }
+                else
+                {
+                    writeXMLToOutputStream(request, response, outputStream);
+                }
+
+                if (outputStream instanceof CachedOutputStream)
+                {
+                    cachedResponseManager.completeCachedResponse(request, response, (CachedOutputStream) outputStream);
+                    primed = true;
+                }
+
+                return true;
+            }
+            else
+            {
+                return false;
+            }
+        }
+        finally
+        {
+            // Never leave a partial response in the cache, or other requests waiting for it.
+            if (outputStream instanceof CachedOutputStream && !primed)
+            {
+                cachedResponseManager.abortCachedResponse(request, response, (CachedOutputStream) outputStream);
+            }
+        }
+    }
+
+    /**
+     * Rebuild the cached response for the given request in the background, unless it is
+     * already being rebuilt. The request is processed again from the start, using a
+     * snapshot of the request, because the request itself completes in the meantime.
+     * 
+     * @param request
+     * @param response 
+     */
+    protected void refreshCachedResponse(OXORequest request, OXOResponse response)
+    {
+        if (cacheRefreshExecutor != null && cachedResponseManager.getPendingCachedResponse(request, response) == null)
+        {
+            try
+            {
+                OXORequest detachedRequest = new OXORequest(new DetachedRequest(request, OXOContext.getUser().getPreferences().getLocale()));
+                OXOResponse detachedResponse = new OXOResponse(new DetachedResponse(response));
 
-                    // No further action needed, #outputCachedResponse() 'commits' the response.
-                    return;
-                }
-                else // Prime server cache.
+                // Claim the cached response right away, so that it is rebuilt only once.
+                CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(detachedRequest, detachedResponse);
+                if (cachedResponse != null)
                 {
-                    logger.debug("OXOServlet.outputResponse() -> prime/use server cache " + request.getServletPath());
-                    outputStream = createCachedOutputStreamForResponse(request, response);
+                    try
+                    {
+                        cacheRefreshExecutor.execute(OXOContext.wrap(() -> rebuildCachedResponse(detachedRequest, detachedResponse, cachedResponse.outputStream)));
+                    }
+                    catch (RejectedExecutionException exception)
+                    {
+                        cachedResponseManager.abortCachedResponse(detachedRequest, detachedResponse, cachedResponse.outputStream);
+                    }
                 }
             }
-            else
+            catch (IOException exception)
             {
-                logger.debug("OXOServlet.outputResponse() -> do not use cache " + request.getServletPath());
-                outputStream = response.getOutputStream();
+                logger.error("The cached response for " + request.getServletPath() + " could not be refreshed.", exception);
             }
+        }
+    }
 
-            Data data = response.getData();
-            if (data != null)
+    private void rebuildCachedResponse(OXORequest request, OXOResponse response, CachedOutputStream outputStream)
+    {
+        logger.debug("OXOServlet.rebuildCachedResponse() " + request.getServletPath());
+
+        boolean written = false;
+        try
+        {
+            init(request, response);
+            processRequest(request, response);
+
+            if (!response.isCommitted() && response.getData() != null && useCache(request, response))
             {
-                // Build out the data object.
-                try
-                {
-                    // Data should call #response.isCommitted(true) if it produces the output directly.
-                    data.build(request, response);
-                }
-                catch(Exception exception)
-                {
-                    outputException(response, new Exception("An unhandled exception occurred while building the response data.", exception));
-                }
-            }            
+                written = true;
 
-            if (!response.isCommitted())
+                // Completes or discards the cached response.
+                writeResponse(request, response, outputStream);
+            }
+        }
+        catch (Exception exception)
+        {
+            logger.error("The cached response for " + request.getServletPath() + " could not be refreshed.", exception);
+        }
+        finally
+        {
+            if (!written)
             {
-                // Write output to the given outputstream transformed or untransformed.
-                if (response.getTransformationOutputType() != null)
-                {
-                    writeTransformedXMLToOutputStream(request, response, outputStream);
-                }
-                else
-                {
-                    writeXMLToOutputStream(request, response, outputStream);
-                }
+                cachedResponseManager.abortCachedResponse(request, response, outputStream);
             }
         }
     }
@@ -303,6 +1129,13 @@ public abstract class OXOServlet extends HttpServlet
     // otherwise, set it as an internal server error. 
     protected void outputException(OXOResponse response, Exception exception)
     {
+        if (response.isFinished())
+        {
+            // Timed out or failed already, the container has completed it (with an error).
+            logger.debug("An exception was encountered after the request was finished.", exception);
+            return;
+        }
+
         // Only set it if it hasn't already been set...
         if (response.getStatus() == 0 || response.getStatus() == HttpServletResponse.SC_OK)
         {
@@ -344,10 +1177,6 @@ public abstract class OXOServlet extends HttpServlet
         Data data = response.getData();
         XStream xStream = getXStreamFromData(data);
 
-        // Create an entity resolver which will be used to resolve the root XSL template
-        // as well as external entities referenced in the template itself.
-        OXOEntityResolver entityResolver = new OXOEntityResolver(OXOContext.getTemplatesPackage(), OXOContext.getPropertiesPackage());
-
         String canonicalClassName = response.getData().getClass().getCanonicalName().toLowerCase();
         int dataIndex = canonicalClassName.lastIndexOf("data");
         canonicalClassName = (dataIndex == -1) ? canonicalClassName : canonicalClassName.substring(0, dataIndex);
@@ -361,46 +1190,29 @@ public abstract class OXOServlet extends HttpServlet
 
         String xslTemplate = stringBuilder.toString();
 
-        // Retrieve the root XSL template.
-        InputSource inputSource = entityResolver.resolveEntity(null, xslTemplate);
-
-        // Create an XML reader which will be used to process the XSL template.
-        // We assign our own custom entity resolver so that it can resolve
-        // entities that are to be located using our customized template scheme.
-        XMLReader xmlReader = XMLReaderFactory.createXMLReader();
-        xmlReader.setEntityResolver(entityResolver);
-
-        // Create the SAXSource objects.
-        SAXSource xslSource = new SAXSource(xmlReader, inputSource);
         SAXSource xmlSource = new TraxSource(response, xStream);
 
-        // Create a transformer.
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        transformerFactory.setURIResolver(new OXOURIResolver(entityResolver));
-        transformerFactory.setErrorListener(new OXOErrorListener());
-
         try
         {
-            Transformer transformer = transformerFactory.newTransformer(xslSource);
+            // Compiling the template is expensive, so (re)use the compiled template and its transformers.
+            PooledTemplates templates = templateManager.getTemplates(xslTemplate);
+
+            Transformer transformer = templates.acquireTransformer();
+            transformer.setURIResolver(new OXOURIResolver(new OXOEntityResolver(OXOContext.getTemplatesPackage(), OXOContext.getPropertiesPackage())));
+            transformer.setErrorListener(new OXOErrorListener());
 
             // Only set the content headers if we are outputting the result
-            // of the tranformation to a servlet output stream.
+            // of the tranformation to a servlet output stream (or to the cache, which keeps them).
             // TODO: We should set these as early as possible so that overriding methods can potentially overwrite them.
-            if (outputStream instanceof ServletOutputStream)
+            if (outputStream instanceof ServletOutputStream || outputStream instanceof CachedOutputStream)
             {
-                String mediaType = transformer.getOutputProperty("media-type");
-                if (mediaType != null)
-                {
-                    response.setContentType(mediaType);
-                }
-                String encoding = transformer.getOutputProperty("encoding");
-                if (encoding != null)
-                {
-                    response.setCharacterEncoding(encoding);
-                }
+                setContentHeaders(response, outputStream, transformer.getOutputProperty("media-type"), transformer.getOutputProperty("encoding"));
             }
 
             transformer.transform(xmlSource, new StreamResult(outputStream));
+
+            // Transformers are only reused after successful transformations.
+            templates.releaseTransformer(transformer);
         }
         catch (TransformerException exception)
         {
@@ -431,16 +1243,41 @@ public abstract class OXOServlet extends HttpServlet
         // Print the XML generated for debugging purposes.
         // logger.debug(xStream.toXML(response));
 
-        // Only set the content headers if we are outputting to a servlet output stream.
+        // Only set the content headers if we are outputting to a servlet output stream (or to the cache, which keeps them).
         // TODO: We should set these as early as possible sothat overriding methods can potentially overwrite them.
-        if (outputStream instanceof ServletOutputStream)
+        if (outputStream instanceof ServletOutputStream || outputStream instanceof CachedOutputStream)
         {
-            response.setContentType("text/xml");
-            response.setCharacterEncoding("UTF-8");
+            setContentHeaders(response, outputStream, "text/xml", "UTF-8");
         }
         xStream.toXML(response, outputStream);
     }
 
+    /**
+     * Set the content headers of the response, and of the cached output stream it is written to,
+     * if any. The cached output stream keeps them even if the request times out or fails while
+     * the response is being written, after which they are no longer set on the response itself.
+     */
+    protected final void setContentHeaders(OXOResponse response, OutputStream outputStream, String contentType, String characterEncoding)
+    {
+        boolean finished = response.isFinished();
+        if (!finished)
+        {
+            if (contentType != null)
+            {
+                response.setContentType(contentType);
+            }
+            if (characterEncoding != null)
+            {
+                response.setCharacterEncoding(characterEncoding);
+            }
+        }
+
+        if (outputStream instanceof CachedOutputStream && contentType != null)
+        {
+            ((CachedOutputStream) outputStream).setContentHeaders(contentType, (characterEncoding != null || finished) ? characterEncoding : response.getCharacterEncoding());
+        }
+    }
+
     /**
      * This method converts the data object into XML using XStream.
      * 
@@ -449,37 +1286,8 @@ public abstract class OXOServlet extends HttpServlet
      */
     protected final XStream getXStreamFromData(Data data)
     {
-        // Convert the response object into XML using XStream.
-        XStream xStream = new XStream(new DomDriver());
-        xStream.setMode(XStream.NO_REFERENCES);
-
-        // TODO
-        // For the converters I'm registering here, I should not have to annotate anywhere I believe.
-        // Test and remove annotations that are redundant.
-        xStream.registerConverter(new OXOResponseConverter());
-        xStream.registerConverter(new OXORequestConverter());
-        xStream.registerConverter(new ClientConverter(), XStream.PRIORITY_LOW);
-        xStream.registerConverter(new LocaleConverter());
-        xStream.registerConverter(new DateTimeConverter());
-        // TODO
-        // This is a WIP to deal with null values in collections. Right now, it's fine in XML,
-        // but when converted to JSON, it breaks the list structure.
-        // We can fix it by wrapping the <null/> values in the same XML element as it's siblings,
-        // maybe NamedCollectionConverter fixes it (test), or maybe just remove this
-        // and deal with list's containing nulls in another way.
-        xStream.registerConverter(new NullWrappingCollectionConverter(xStream.getMapper()));
-        xStream.aliasType("response", OXOResponse.class);
-
-        if (data != null)
-        {
-            // In case the data object is a non-static inner class, this will
-            // omit the reference to the outer class.
-            xStream.omitField(data.getClass(), "this$0");
-
-            xStream.processAnnotations(data.getClass());
-        }
-
-        return xStream;
+        // XStream instances are expensive to configure, so they are configured once per data class.
+        return xStreamManager.getXStream(data);
     }
 
     protected final boolean useCache(OXORequest request, OXOResponse response)
@@ -518,6 +1326,12 @@ public abstract class OXOServlet extends HttpServlet
         DateTime dataLastModifiedDateTime = data.getLastModifiedDateTime();
         DateTime cachedDateTime = new DateTime(request.getDateHeader("If-Modified-Since"));
 
+        // If-None-Match takes precedence over If-Modified-Since, it is checked against the entity tag instead.
+        if (request.getHeader("If-None-Match") != null)
+        {
+            return false;
+        }
+
         // Was the "If-Modified-Since" header present on the request?
         if (cachedDateTime.isAfter(new DateTime(0)))
         {
@@ -545,13 +1359,21 @@ public abstract class OXOServlet extends HttpServlet
         }
     }
 
-    protected final boolean useServerCache(OXORequest request, OXOResponse response)
+    /**
+     * Check whether the given cached response for the request is still valid.
+     * 
+     * @param request
+     * @param response
+     * @param cachedResponse the cached response for the request, may be null
+     * @return 
+     */
+    protected final boolean useServerCache(OXORequest request, OXOResponse response, CachedResponse cachedResponse)
     {
         Data data = response.getData();
 
         Duration dataExpirationDuration = data.getExpirationDuration();
         DateTime dataLastModifiedDateTime = data.getLastModifiedDateTime();
-        DateTime cachedDateTime = cachedResponseManager.getCachedResponseDateTime(request);
+        DateTime cachedDateTime = (cachedResponse != null) ? cachedResponse.dateTime : null;
 
         // Is there an entry in the cache?
         if (cachedDateTime != null)
@@ -580,28 +1402,317 @@ public abstract class OXOServlet extends HttpServlet
         }
     }
 
-    // No check is done. The cache MUST contain a valid cached response for the request.
-    protected void outputCachedResponse(OXORequest request, OXOResponse response) throws IOException
+    /**
+     * Check whether the given cached response for the request has expired, but by less than the
+     * grace period, so it may still be served while it is rebuilt in the background.
+     * 
+     * @param request
+     * @param response
+     * @param cachedResponse the cached response for the request, may be null
+     * @return 
+     */
+    protected final boolean useStaleServerCache(OXORequest request, OXOResponse response, CachedResponse cachedResponse)
+    {
+        Data data = response.getData();
+
+        Duration dataExpirationDuration = data.getExpirationDuration();
+        DateTime dataLastModifiedDateTime = data.getLastModifiedDateTime();
+        DateTime cachedDateTime = (cachedResponse != null) ? cachedResponse.dateTime : null;
+
+        // Is there an expiring entry in the cache and can it be rebuilt in the background?
+        if (cachedDateTime != null && dataExpirationDuration != null && cacheGracePeriod > 0 && cacheRefreshExecutor != null)
+        {
+            // Has the grace period passed as well?
+            if (cachedDateTime.plus(dataExpirationDuration).plus(cacheGracePeriod).isAfterNow())
+            {
+                // Modified data is never served stale.
+                return dataLastModifiedDateTime == null || dataLastModifiedDateTime.isBefore(cachedDateTime);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check whether the given (valid) cached response for the request is about to expire and
+     * is requested often enough to rebuild it in the background before it does.
+     * 
+     * @param request
+     * @param response
+     * @param cachedResponse the cached response for the request, may be null
+     * @return 
+     */
+    protected final boolean refreshServerCacheAhead(OXORequest request, OXOResponse response, CachedResponse cachedResponse)
     {
-        CachedResponse cachedResponse = cachedResponseManager.getCachedResponse(request);
-        
-        setResponseCacheHeaders(request, response);
+        Duration dataExpirationDuration = response.getData().getExpirationDuration();
+        DateTime cachedDateTime = (cachedResponse != null) ? cachedResponse.dateTime : null;
+
+        if (cachedDateTime != null && dataExpirationDuration != null && cacheRefreshAhead > 0 && cacheRefreshExecutor != null)
+        {
+            if (cachedDateTime.plus(dataExpirationDuration).minus(cacheRefreshAhead).isBeforeNow())
+            {
+                return cachedResponse.getHits() >= cacheRefreshAheadHits;
+            }
+        }
 
-        cachedResponse.outputStream.getBuffer().writeTo(response.getOutputStream());
+        return false;
     }
-    
+
+    /**
+     * Send the given cached response. No check is done, it must be valid for the request
+     * (see #useServerCache() and #useStaleServerCache()).
+     * 
+     * @param request
+     * @param response
+     * @param cachedResponse
+     * @throws IOException 
+     */
+    protected void outputCachedResponse(OXORequest request, OXOResponse response, CachedResponse cachedResponse) throws IOException
+    {
+        if (response.isFinished())
+        {
+            return; // Timed out or failed, the container has completed it.
+        }
+
+        setResponseCacheHeaders(response, cachedResponse.dateTime);
+        setResponseVaryHeaders(request, response);
+
+        CachedOutputStream body = cachedResponse.outputStream;
+        CachedOutputStream gzipBody = cachedResponse.gzipOutputStream;
+
+        boolean gzip = gzipBody != null && acceptsEncoding(request, CachedResponseManager.GZIP);
+        if (gzipBody != null)
+        {
+            // The response depends on the content codings the client accepts.
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+
+        // Both variants have the same content; if the client has either, it need not get the other.
+        if (cachedResponse.eTag != null)
+        {
+            response.setHeader("ETag", cachedResponse.getETag(gzip));
+            if (matchesETag(request, cachedResponse.getETag(false), cachedResponse.getETag(true)))
+            {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
+        if (gzipBody != null)
+        {
+            if (gzip)
+            {
+                response.setHeader("Content-Encoding", CachedResponseManager.GZIP);
+                body = gzipBody;
+            }
+            else if (body == null)
+            {
+                // Only the compressed variant is cached, decompress it for this (rare) client.
+                setResponseContentHeaders(response, gzipBody);
+
+                if (response.getAsyncCompletion() != null)
+                {
+                    CachedOutputStream decompressedBody = new CachedOutputStream(null, false, false);
+                    try (InputStream in = new GZIPInputStream(gzipBody.newInputStream(), 8192))
+                    {
+                        in.transferTo(decompressedBody);
+                    }
+                    decompressedBody.complete();
+
+                    response.setContentLengthLong(decompressedBody.size());
+                    writeBody(request, response, decompressedBody, 0);
+                }
+                else
+                {
+                    try (InputStream in = new GZIPInputStream(gzipBody.newInputStream(), 8192))
+                    {
+                        in.transferTo(response.getOutputStream());
+                    }
+                }
+                return;
+            }
+        }
+
+        setResponseContentHeaders(response, body);
+        response.setContentLengthLong(body.size());
+
+        writeBody(request, response, body, 0);
+    }
+
+    /**
+     * Check whether the client accepts the given content coding (Accept-Encoding).
+     * Identity is acceptable unless it is explicitly refused.
+     * 
+     * @param request
+     * @param contentCoding
+     * @return 
+     */
+    protected static boolean acceptsEncoding(OXORequest request, String contentCoding)
+    {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null)
+        {
+            return contentCoding.equals("identity");
+        }
+
+        Boolean wildcard = null;
+        for (String element : acceptEncoding.split(","))
+        {
+            String[] parameters = element.split(";");
+            String coding = parameters[0].trim().toLowerCase(Locale.ROOT);
+
+            boolean acceptable = true;
+            for (int i = 1; i < parameters.length; i++)
+            {
+                String parameter = parameters[i].trim().toLowerCase(Locale.ROOT);
+                if (parameter.startsWith("q="))
+                {
+                    try
+                    {
+                        acceptable = Double.parseDouble(parameter.substring(2)) > 0;
+                    }
+                    catch (NumberFormatException exception)
+                    {
+                        acceptable = false;
+                    }
+                }
+            }
+
+            if (coding.equals(contentCoding) || (contentCoding.equals("gzip") && coding.equals("x-gzip")))
+            {
+                return acceptable;
+            }
+            else if (coding.equals("*"))
+            {
+                wildcard = acceptable;
+            }
+        }
+
+        return (wildcard != null) ? wildcard : contentCoding.equals("identity");
+    }
+
+    /**
+     * Stream the response to the request that another request is currently writing to the cache,
+     * as it is being written.
+     * 
+     * @param request
+     * @param response
+     * @return false if there is no such response, or it was discarded or did not produce output in time
+     * @throws IOException 
+     */
+    protected boolean outputPendingCachedResponse(OXORequest request, OXOResponse response) throws IOException
+    {
+        CachedResponse cachedResponse = cachedResponseManager.getPendingCachedResponse(request, response);
+        if (cachedResponse == null)
+        {
+            // It may have been completed in the meantime.
+            CachedResponse completedResponse = cachedResponseManager.getCachedResponse(request, response);
+            if (useServerCache(request, response, completedResponse))
+            {
+                outputCachedResponse(request, response, completedResponse);
+                return true;
+            }
+            else
+            {
+                return false;
+            }
+        }
+
+        // The uncompressed variant is kept for as long as the response is pending, but it may
+        // be dropped right after (see CachedResponseManager#setCompression()); it is complete then.
+        CachedOutputStream outputStream = cachedResponse.outputStream;
+        if (outputStream == null)
+        {
+            outputCachedResponse(request, response, cachedResponse);
+            return true;
+        }
+
+        try
+        {
+            if (!outputStream.awaitOutput(cachePrimingTimeout))
+            {
+                return false;
+            }
+        }
+        catch (InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (response.isFinished())
+        {
+            return true; // Timed out or failed while waiting, the container has completed it.
+        }
+
+        setResponseCacheHeaders(response, cachedResponse.dateTime);
+        setResponseVaryHeaders(request, response);
+        setResponseContentHeaders(response, outputStream);
+
+        writeBody(request, response, outputStream, cachePrimingTimeout);
+
+        return true;
+    }
+
+    /**
+     * Start caching the response to the request.
+     * 
+     * @param request
+     * @param response
+     * @return the output stream to write the response to, or null if another request is already caching it
+     * @throws IOException
+     * @throws SAXException
+     * @throws TransformerException
+     * @throws ReflectiveOperationException 
+     */
     protected CachedOutputStream createCachedOutputStreamForResponse(OXORequest request, OXOResponse response) throws IOException, SAXException, TransformerException, ReflectiveOperationException
     {
         CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(request, response);
+        if (cachedResponse == null)
+        {
+            return null;
+        }
         
-        setResponseCacheHeaders(request, response);
+        setResponseCacheHeaders(response, cachedResponse.dateTime);
+        setResponseVaryHeaders(request, response);
 
         return cachedResponse.outputStream;
     }
+
+    protected void setResponseContentHeaders(OXOResponse response, CachedOutputStream outputStream)
+    {
+        if (outputStream.getContentType() != null)
+        {
+            response.setContentType(outputStream.getContentType());
+        }
+        if (outputStream.getCharacterEncoding() != null)
+        {
+            response.setCharacterEncoding(outputStream.getCharacterEncoding());
+        }
+    }
     
+    /**
+     * List the request headers the cached response depends on (see CacheKeyStrategy) in the
+     * Vary header, so that caches between us and the client keep the variants apart as well.
+     * 
+     * @param request
+     * @param response 
+     */
+    protected void setResponseVaryHeaders(OXORequest request, OXOResponse response)
+    {
+        for (String header : cachedResponseManager.getVaryHeaders(request, response))
+        {
+            response.addHeader("Vary", header);
+        }
+    }
+
     protected void setResponseCacheHeaders(OXORequest request, OXOResponse response)
     {
-        DateTime cachedDateTime = cachedResponseManager.getCachedResponseDateTime(request);
+        setResponseCacheHeaders(response, cachedResponseManager.getCachedResponseDateTime(request, response));
+    }
+
+    protected void setResponseCacheHeaders(OXOResponse response, DateTime cachedDateTime)
+    {
         response.setDateHeader("Last-Modified", cachedDateTime.getMillis());
 
         Duration dataExpirationDuration = response.getData().getExpirationDuration();
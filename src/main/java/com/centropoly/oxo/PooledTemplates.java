@@ -0,0 +1,94 @@
+package com.centropoly.oxo;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+
+/**
+ * Compiled templates with a pool of transformers created from them.
+ * 
+ * Transformers are not thread-safe, but they can be reused after being reset.
+ * Transformers that are acquired should be released when done, unless the
+ * transformation failed, so that subsequent transformations can reuse them.
+ * 
+ * @author Paul van der Maas
+ */
+public final class PooledTemplates implements Templates
+{
+    public final static int DEFAULT_MAXIMUM_IDLE_TRANSFORMERS = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final Templates templates;
+
+    private final ConcurrentLinkedQueue<Transformer> transformers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleTransformers = new AtomicInteger(0);
+
+    public PooledTemplates(Templates templates)
+    {
+        this.templates = templates;
+    }
+
+    /**
+     * Get the templates these were compiled to.
+     * 
+     * @return 
+     */
+    public Templates getTemplates()
+    {
+        return templates;
+    }
+
+    /**
+     * Acquire a transformer from the pool, or create a new one if none are available.
+     * The error listener and URI resolver should be (re)set by the caller.
+     * 
+     * @return
+     * @throws TransformerConfigurationException 
+     */
+    public Transformer acquireTransformer() throws TransformerConfigurationException
+    {
+        Transformer transformer = transformers.poll();
+        if (transformer != null)
+        {
+            idleTransformers.decrementAndGet();
+
+            return transformer;
+        }
+        else
+        {
+            return templates.newTransformer();
+        }
+    }
+
+    /**
+     * Reset the transformer and return it to the pool, unless the pool is full.
+     * 
+     * @param transformer a transformer acquired from these templates
+     */
+    public void releaseTransformer(Transformer transformer)
+    {
+        if (idleTransformers.incrementAndGet() <= DEFAULT_MAXIMUM_IDLE_TRANSFORMERS)
+        {
+            transformer.reset();
+            transformers.offer(transformer);
+        }
+        else
+        {
+            idleTransformers.decrementAndGet();
+        }
+    }
+
+    @Override
+    public Transformer newTransformer() throws TransformerConfigurationException
+    {
+        return templates.newTransformer();
+    }
+
+    @Override
+    public Properties getOutputProperties()
+    {
+        return templates.getOutputProperties();
+    }
+}
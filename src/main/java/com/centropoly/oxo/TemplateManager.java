@@ -0,0 +1,580 @@
+package com.centropoly.oxo;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+/**
+ * This class manages the compiled XSL templates used in the transformations in the OXO framework.
+ * 
+ * Compiling a stylesheet (including everything it includes) is far more expensive than
+ * transforming with it, so compiled templates are kept and shared between requests.
+ * Templates objects are thread-safe, transformers are not. Every transformation should
+ * therefore acquire its own transformer from the shared templates' pool.
+ * 
+ * Templates that reference property entities are resolved against a locale while they
+ * are parsed. Those are compiled and cached once per locale of the property resource
+ * bundles they use, so locales that fall back to the same bundles (e.g. en-US and en-GB
+ * when there is only an English bundle) share them. Since there can be many (template,
+ * locale) pairs, the number of localized templates that is kept is bounded and the least
+ * recently used ones are evicted first, so rarely requested locales make way for the
+ * popular ones.
+ * 
+ * @author Paul van der Maas
+ */
+public final class TemplateManager
+{
+    private final static Logger logger = LogManager.getLogger(TemplateManager.class);
+
+    public final static int DEFAULT_MAXIMUM_LOCALIZED_TEMPLATES = 256;
+
+    // Templates that do not depend on the locale.
+    private final ConcurrentHashMap<String, PooledTemplates> cache = new ConcurrentHashMap<>();
+
+    // Templates known to depend on the locale, with the property resource bundles they use (empty
+    // if unknown, for translets), and their compiled, localized variants (see #getLocalizedKey()).
+    private final ConcurrentHashMap<String, Set<String>> localizedTemplates = new ConcurrentHashMap<>();
+    private final LocalizedTemplatesCache localizedCache = new LocalizedTemplatesCache();
+
+    private final AtomicBoolean precompiled = new AtomicBoolean(false);
+
+    private volatile String transletsPackage = null;
+
+    /**
+     * Get the compiled templates for the given template URI (e.g. template:/path/page.html.xsl)
+     * localized for the current user's locale.
+     * 
+     * @param template
+     * @return
+     * @throws IOException
+     * @throws SAXException
+     * @throws TransformerException 
+     */
+    public PooledTemplates getTemplates(String template) throws IOException, SAXException, TransformerException
+    {
+        return getTemplates(template, OXOContext.getUser().getPreferences().getLocale());
+    }
+
+    /**
+     * Get the compiled templates for the given template URI (e.g. template:/path/page.html.xsl)
+     * localized for the given locale.
+     * 
+     * @param template
+     * @param locale
+     * @return
+     * @throws IOException
+     * @throws SAXException
+     * @throws TransformerException 
+     */
+    public PooledTemplates getTemplates(String template, Locale locale) throws IOException, SAXException, TransformerException
+    {
+        PooledTemplates templates;
+
+        Set<String> bundles = localizedTemplates.get(template);
+        if (bundles != null)
+        {
+            String localizedTemplate = getLocalizedKey(template, bundles, locale);
+
+            templates = localizedCache.get(localizedTemplate);
+            if (templates == null)
+            {
+                templates = loadTranslet(getTransletName(template, locale));
+                if (templates == null)
+                {
+                    templates = compileTemplates(template, new OXOEntityResolver(OXOContext.getTemplatesPackage(), OXOContext.getPropertiesPackage(), locale));
+                }
+
+                if (OXOContext.templateCache())
+                {
+                    localizedCache.put(localizedTemplate, templates);
+                }
+            }
+        }
+        else
+        {
+            templates = cache.get(template);
+            if (templates == null)
+            {
+                boolean localized;
+
+                // Prefer translets that were compiled ahead of time, if any.
+                templates = loadTranslet(getTransletName(template, locale));
+                if (templates != null)
+                {
+                    localized = true;
+                    bundles = Collections.emptySet();
+                }
+                else
+                {
+                    templates = loadTranslet(getTransletName(template, null));
+                    if (templates != null)
+                    {
+                        localized = false;
+                    }
+                    else
+                    {
+                        OXOEntityResolver entityResolver = new OXOEntityResolver(OXOContext.getTemplatesPackage(), OXOContext.getPropertiesPackage(), locale);
+
+                        templates = compileTemplates(template, entityResolver);
+
+                        localized = entityResolver.hasResolvedProperties();
+                        bundles = entityResolver.getResolvedBundles();
+                    }
+                }
+
+                if (OXOContext.templateCache())
+                {
+                    if (localized)
+                    {
+                        localizedTemplates.put(template, bundles);
+                        localizedCache.put(getLocalizedKey(template, bundles, locale), templates);
+                    }
+                    else
+                    {
+                        PooledTemplates cachedTemplates = cache.putIfAbsent(template, templates);
+                        if (cachedTemplates != null)
+                        {
+                            templates = cachedTemplates;
+                        }
+                    }
+                }
+            }
+        }
+
+        return templates;
+    }
+
+    /**
+     * Get the key of the variant of a localized template for the given locale: the template and the
+     * locales of the property resource bundles that are used for it, which are those that ResourceBundle
+     * falls back to for the locale. Bundles are cached by ResourceBundle, so this is cheap.
+     * 
+     * @param bundles the bundles the template uses, or none to key it by the given locale
+     */
+    private static String getLocalizedKey(String template, Set<String> bundles, Locale locale)
+    {
+        StringBuilder key = new StringBuilder(template).append('#');
+        if (bundles.isEmpty())
+        {
+            return key.append(locale.toLanguageTag()).toString();
+        }
+
+        for (String bundle : bundles)
+        {
+            Locale bundleLocale;
+            try
+            {
+                bundleLocale = ResourceBundle.getBundle(bundle, locale).getLocale();
+            }
+            catch (MissingResourceException exception)
+            {
+                // It will fail to compile as well.
+                bundleLocale = locale;
+            }
+            key.append(bundleLocale.toLanguageTag()).append(',');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Compile all templates (*.xsl) found in the templates package on the classpath in parallel
+     * and keep them, so that the first requests do not have to pay for compiling them.
+     * Localized templates are compiled for every given locale, once per variant (see #getTemplates()).
+     * 
+     * This is only done once, even when called by multiple servlets, unless templates failed to
+     * compile, in which case it is done again (and they fail again) the next time it is called.
+     * 
+     * @param locales the locales to compile localized templates for
+     * @return the templates that failed to compile and the reason why
+     * @throws IOException if the templates package could not be scanned
+     */
+    public Map<String, Exception> precompile(final List<Locale> locales) throws IOException
+    {
+        final Map<String, Exception> failures = new ConcurrentHashMap<>();
+
+        if (locales.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one locale is required to compile templates.");
+        }
+
+        if (precompiled.compareAndSet(false, true))
+        {
+            Set<String> templates = findTemplates();
+
+            ForkJoinPool pool = new ForkJoinPool();
+            try
+            {
+                // Make sure no template is evicted while it is being compiled.
+                localizedCache.ensureMinimumSize(templates.size());
+
+                // The first compilation tells us whether a template is localized, and which bundles it uses.
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (String template : templates)
+                {
+                    tasks.add(ForkJoinTask.adapt(() -> precompile(template, locales.get(0), template, failures)));
+                }
+                invokeAll(pool, tasks);
+
+                // Then the other variants of the localized templates are compiled, once for all locales that share one.
+                tasks = new ArrayList<>();
+                int variants = 0;
+                for (String template : templates)
+                {
+                    Set<String> bundles = localizedTemplates.get(template);
+                    if (bundles != null)
+                    {
+                        Set<String> keys = new HashSet<>();
+                        keys.add(getLocalizedKey(template, bundles, locales.get(0)));
+                        for (Locale locale : locales.subList(1, locales.size()))
+                        {
+                            if (keys.add(getLocalizedKey(template, bundles, locale)))
+                            {
+                                tasks.add(ForkJoinTask.adapt(() -> precompile(template, locale, template + '#' + locale.toLanguageTag(), failures)));
+                            }
+                        }
+                        variants += keys.size();
+                    }
+                }
+
+                // Make sure all localized variants fit.
+                localizedCache.ensureMinimumSize(variants);
+                invokeAll(pool, tasks);
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+
+            if (!failures.isEmpty())
+            {
+                precompiled.set(false);
+            }
+        }
+
+        return failures;
+    }
+
+    private void precompile(String template, Locale locale, String name, Map<String, Exception> failures)
+    {
+        try
+        {
+            getTemplates(template, locale);
+        }
+        catch (IOException | SAXException | TransformerException | RuntimeException exception)
+        {
+            failures.put(name, exception);
+        }
+    }
+
+    private static void invokeAll(ForkJoinPool pool, List<ForkJoinTask<?>> tasks)
+    {
+        pool.invoke(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Find the URIs (e.g. template:/path/page.html.xsl) of all templates in the templates package.
+     * Templates in directories and jar files on the classpath are found.
+     * 
+     * @return
+     * @throws IOException 
+     */
+    public Set<String> findTemplates() throws IOException
+    {
+        String templatesFolder = OXOContext.getTemplatesPackage().replace(".", "/");
+
+        Set<String> templates = new TreeSet<>();
+
+        Enumeration<URL> urls = this.getClass().getClassLoader().getResources(templatesFolder);
+        while (urls.hasMoreElements())
+        {
+            URL url = urls.nextElement();
+
+            if (url.getProtocol().equals("file"))
+            {
+                Path root;
+                try
+                {
+                    root = Paths.get(url.toURI());
+                }
+                catch (URISyntaxException exception)
+                {
+                    throw new IOException(exception);
+                }
+
+                try (Stream<Path> paths = Files.walk(root))
+                {
+                    for (Path path : (Iterable<Path>) paths::iterator)
+                    {
+                        if (Files.isRegularFile(path) && path.getFileName().toString().endsWith(".xsl"))
+                        {
+                            templates.add("template:/" + root.relativize(path).toString().replace(File.separatorChar, '/'));
+                        }
+                    }
+                }
+            }
+            else if (url.getProtocol().equals("jar"))
+            {
+                JarURLConnection connection = (JarURLConnection) url.openConnection();
+                connection.setUseCaches(false);
+
+                try (JarFile jarFile = connection.getJarFile())
+                {
+                    String prefix = templatesFolder + "/";
+                    Enumeration<JarEntry> entries = jarFile.entries();
+                    while (entries.hasMoreElements())
+                    {
+                        String name = entries.nextElement().getName();
+                        if (name.startsWith(prefix) && name.endsWith(".xsl"))
+                        {
+                            templates.add("template:/" + name.substring(prefix.length()));
+                        }
+                    }
+                }
+            }
+            else
+            {
+                logger.warn("Templates in " + url + " cannot be scanned. Only directories and jar files are supported.");
+            }
+        }
+
+        return templates;
+    }
+
+    /**
+     * Set the package that translets compiled ahead of time (see TransletCompiler) are
+     * loaded from. Translets are used instead of the templates they were compiled from.
+     * Templates without a translet are compiled as usual.
+     * 
+     * @param transletsPackage the package, or null to not use translets
+     */
+    public void setTransletsPackage(String transletsPackage)
+    {
+        this.transletsPackage = transletsPackage;
+    }
+
+    /**
+     * Set the maximum number of localized templates that are kept.
+     * 
+     * @param maximumLocalizedTemplates 
+     */
+    public void setMaximumLocalizedTemplates(int maximumLocalizedTemplates)
+    {
+        localizedCache.setMaximumSize(maximumLocalizedTemplates);
+    }
+
+    /**
+     * Remove all compiled templates.
+     */
+    public void clear()
+    {
+        cache.clear();
+        localizedTemplates.clear();
+        localizedCache.clear();
+        precompiled.set(false);
+    }
+
+    private PooledTemplates loadTranslet(String transletName) throws TransformerException
+    {
+        if (transletsPackage == null)
+        {
+            return null;
+        }
+
+        // Translets that do not exist are simply not used.
+        String transletClassName = transletsPackage + "." + transletName;
+        if (this.getClass().getClassLoader().getResource(transletClassName.replace(".", "/") + ".class") == null)
+        {
+            return null;
+        }
+
+        // XSLTC is the processor bundled with Xalan that compiles templates into Java classes (translets).
+        TransformerFactory transformerFactory = new org.apache.xalan.xsltc.trax.TransformerFactoryImpl();
+        transformerFactory.setAttribute("use-classpath", Boolean.TRUE);
+        transformerFactory.setAttribute("package-name", transletsPackage);
+        transformerFactory.setAttribute("translet-name", transletName);
+        transformerFactory.setErrorListener(new OXOErrorListener());
+
+        logger.debug("TemplateManager.loadTranslet() " + transletClassName);
+
+        return new PooledTemplates(transformerFactory.newTemplates(new StreamSource()));
+    }
+
+    /**
+     * Get the (simple) class name of the translet for the given template URI and locale.
+     * Different templates (and locales) always get different names: characters other than
+     * letters and digits are escaped (e.g. path/page.html becomes path_spage_dhtml).
+     * 
+     * @param template the template URI (e.g. template:/path/page.html.xsl)
+     * @param locale the locale a localized template was compiled for, or null
+     * @return 
+     */
+    static String getTransletName(String template, Locale locale)
+    {
+        String name = template.substring(template.indexOf(':') + 1);
+        if (name.endsWith(".xsl"))
+        {
+            name = name.substring(0, name.length() - ".xsl".length());
+        }
+
+        StringBuilder transletName = new StringBuilder(name.length() + 16);
+        escapeTransletName(name.replaceFirst("^/+", ""), transletName);
+        if (locale != null)
+        {
+            // Escaped names may well contain _l (a_ followed by l becomes a__l), but never at a code boundary:
+            // every escape code is an _ followed by one of _, s, d, h or x. Reading from the left, the first
+            // _l at a code boundary therefore is the separator, so names and locales cannot collide.
+            transletName.append("_l");
+            escapeTransletName(locale.toLanguageTag(), transletName);
+        }
+
+        return (transletName.length() > 0 && Character.isJavaIdentifierStart(transletName.charAt(0))) ? transletName.toString() : "_" + transletName;
+    }
+
+    // Escape _ as __, / as _s, . as _d, - as _h and any other character as _x and its four hex digits.
+    private static void escapeTransletName(String name, StringBuilder transletName)
+    {
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))
+            {
+                transletName.append(c);
+            }
+            else if (c == '_')
+            {
+                transletName.append("__");
+            }
+            else if (c == '/')
+            {
+                transletName.append("_s");
+            }
+            else if (c == '.')
+            {
+                transletName.append("_d");
+            }
+            else if (c == '-')
+            {
+                transletName.append("_h");
+            }
+            else
+            {
+                transletName.append("_x").append(String.format("%04x", (int) c));
+            }
+        }
+    }
+
+    private PooledTemplates compileTemplates(String template, OXOEntityResolver entityResolver) throws IOException, SAXException, TransformerException
+    {
+        // Retrieve the root XSL template.
+        InputSource inputSource = entityResolver.resolveEntity(null, template);
+
+        // Create an XML reader which will be used to process the XSL template.
+        // We assign our own custom entity resolver so that it can resolve
+        // entities that are to be located using our customized template scheme.
+        XMLReader xmlReader = XMLReaderFactory.createXMLReader();
+        xmlReader.setEntityResolver(entityResolver);
+
+        SAXSource xslSource = new SAXSource(xmlReader, inputSource);
+
+        return new PooledTemplates(TransformerFactories.newTemplates(TransformerFactories.getTransformerFactory(), xslSource, new OXOURIResolver(entityResolver)));
+    }
+
+    /**
+     * A bounded, least recently used cache of localized templates.
+     * Lookups are short, so a single lock suffices.
+     */
+    private final static class LocalizedTemplatesCache
+    {
+        private int maximumSize = DEFAULT_MAXIMUM_LOCALIZED_TEMPLATES;
+
+        private final LinkedHashMap<String, PooledTemplates> map = new LinkedHashMap<String, PooledTemplates>(64, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PooledTemplates> eldest)
+            {
+                return size() > maximumSize;
+            }
+        };
+
+        synchronized PooledTemplates get(String key)
+        {
+            return map.get(key);
+        }
+
+        synchronized void put(String key, PooledTemplates templates)
+        {
+            map.put(key, templates);
+        }
+
+        synchronized void setMaximumSize(int maximumSize)
+        {
+            if (maximumSize < 0)
+            {
+                throw new IllegalArgumentException();
+            }
+
+            this.maximumSize = maximumSize;
+
+            // Shrink right away if need be.
+            while (map.size() > maximumSize)
+            {
+                map.remove(map.keySet().iterator().next());
+            }
+        }
+
+        synchronized void ensureMinimumSize(int minimumSize)
+        {
+            if (maximumSize < minimumSize)
+            {
+                maximumSize = minimumSize;
+            }
+        }
+
+        synchronized void clear()
+        {
+            map.clear();
+        }
+    }
+}
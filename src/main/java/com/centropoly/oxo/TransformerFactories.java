@@ -0,0 +1,106 @@
+package com.centropoly.oxo;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.TransformerFactoryConfigurationError;
+import javax.xml.transform.URIResolver;
+
+/**
+ * Holds the transformer factories used in the OXO framework.
+ * 
+ * Looking up a transformer factory (TransformerFactory.newInstance()) scans the classpath
+ * for implementations, which is too expensive to do for every request. So there is one of
+ * each, configured once and shared by all threads. Transformer factories are not thread-safe
+ * though; templates are compiled with #newTemplates(), one at a time per factory, which is
+ * fine as compiled templates are cached (see TemplateManager).
+ * 
+ * @author Paul van der Maas
+ */
+public final class TransformerFactories
+{
+    // The Saxon (HE) library by Saxonica is required for XSLT 2.0 templates.
+    private final static String SAXON_TRANSFORMER_FACTORY = "net.sf.saxon.TransformerFactoryImpl";
+
+    // Created when first used; guarded by the class.
+    private static TransformerFactory transformerFactory = null;
+    private static TransformerFactory saxonTransformerFactory = null;
+
+    // Do not allow instantiation.
+    private TransformerFactories()
+    {
+    }
+
+    private static TransformerFactory configure(TransformerFactory transformerFactory)
+    {
+        transformerFactory.setErrorListener(new OXOErrorListener());
+
+        return transformerFactory;
+    }
+
+    /**
+     * Get the (default) transformer factory. It is shared, so it should only be used
+     * through #newTemplates(), or while synchronized on it.
+     * 
+     * @return 
+     */
+    public static synchronized TransformerFactory getTransformerFactory()
+    {
+        if (transformerFactory == null)
+        {
+            transformerFactory = configure(TransformerFactory.newInstance());
+        }
+        return transformerFactory;
+    }
+
+    /**
+     * Get the Saxon transformer factory. It is shared, so it should only be used
+     * through #newTemplates(), or while synchronized on it.
+     * 
+     * @return
+     * @throws TransformerException if the Saxon library is not available
+     */
+    public static synchronized TransformerFactory getSaxonTransformerFactory() throws TransformerException
+    {
+        if (saxonTransformerFactory == null)
+        {
+            try
+            {
+                saxonTransformerFactory = configure(TransformerFactory.newInstance(SAXON_TRANSFORMER_FACTORY, null));
+            }
+            catch (TransformerFactoryConfigurationError error)
+            {
+                throw new TransformerException("The Saxon (HE) library is required for this transformation. Please make sure it is included as a project dependency.", error);
+            }
+        }
+        return saxonTransformerFactory;
+    }
+
+    /**
+     * Compile a template with the given transformer factory, resolving
+     * included templates with the given URI resolver.
+     * 
+     * @param transformerFactory a transformer factory obtained from this class
+     * @param source the template
+     * @param uriResolver
+     * @return
+     * @throws TransformerConfigurationException 
+     */
+    public static Templates newTemplates(TransformerFactory transformerFactory, Source source, URIResolver uriResolver) throws TransformerConfigurationException
+    {
+        synchronized (transformerFactory)
+        {
+            transformerFactory.setURIResolver(uriResolver);
+            try
+            {
+                return transformerFactory.newTemplates(source);
+            }
+            finally
+            {
+                transformerFactory.setURIResolver(null);
+            }
+        }
+    }
+}
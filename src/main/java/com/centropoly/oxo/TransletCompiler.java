@@ -0,0 +1,160 @@
+package com.centropoly.oxo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+/**
+ * Compiles the templates in a templates package into translets (Java classes) ahead of time
+ * using XSLTC, the compiling XSLT processor bundled with Xalan. This is meant to be run as
+ * part of the build (see the translets profile in pom.xml) so the translets are packaged
+ * with the application and no templates need to be compiled at runtime.
+ * 
+ * Usage: TransletCompiler templatesPackage propertiesPackage locales destinationDirectory [transletsPackage]
+ * 
+ * Localized templates are compiled once per locale in the (comma separated) locales.
+ * The translets package defaults to the templates package followed by ".translets".
+ * 
+ * Templates XSLTC cannot compile (e.g. XSLT 2.0 templates) are reported and skipped,
+ * those are compiled at runtime as usual.
+ * 
+ * @author Paul van der Maas
+ */
+public final class TransletCompiler
+{
+    private final File destinationDirectory;
+    private final String transletsPackage;
+
+    public TransletCompiler(File destinationDirectory, String transletsPackage)
+    {
+        this.destinationDirectory = destinationDirectory;
+        this.transletsPackage = transletsPackage;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 4)
+        {
+            System.err.println("Usage: TransletCompiler templatesPackage propertiesPackage locales destinationDirectory [transletsPackage]");
+            System.exit(1);
+        }
+
+        OXOContext.setTemplatesPackage(args[0]);
+        OXOContext.setPropertiesPackage(args[1]);
+
+        List<Locale> locales = new ArrayList<>();
+        for (String localeTag : args[2].split(","))
+        {
+            if (!localeTag.trim().isEmpty())
+            {
+                locales.add(Locale.forLanguageTag(localeTag.trim()));
+            }
+        }
+        if (locales.isEmpty())
+        {
+            locales.add(Locale.getDefault());
+        }
+
+        String transletsPackage = (args.length > 4) ? args[4] : getDefaultTransletsPackage(args[0]);
+
+        TransletCompiler compiler = new TransletCompiler(new File(args[3]), transletsPackage);
+
+        int compiled = 0;
+        Map<String, Exception> failures = new TreeMap<>();
+        for (String template : new TemplateManager().findTemplates())
+        {
+            try
+            {
+                compiled += compiler.compile(template, locales);
+            }
+            catch (IOException | SAXException | TransformerException exception)
+            {
+                failures.put(template, exception);
+            }
+        }
+
+        for (Map.Entry<String, Exception> failure : failures.entrySet())
+        {
+            System.err.println("The template " + failure.getKey() + " could not be compiled into a translet: " + failure.getValue().getMessage());
+        }
+
+        System.out.println(compiled + " translet(s) were compiled into " + transletsPackage + ", " + failures.size() + " template(s) failed.");
+    }
+
+    /**
+     * The package translets are compiled into, unless specified otherwise.
+     * 
+     * @param templatesPackage
+     * @return 
+     */
+    public static String getDefaultTransletsPackage(String templatesPackage)
+    {
+        return templatesPackage + ".translets";
+    }
+
+    /**
+     * Compile the given template into a translet, or a translet per locale if the template is localized.
+     * 
+     * @param template the template URI (e.g. template:/path/page.html.xsl)
+     * @param locales the locales to compile a localized template for
+     * @return the number of translets compiled
+     * @throws IOException
+     * @throws SAXException
+     * @throws TransformerException 
+     */
+    public int compile(String template, List<Locale> locales) throws IOException, SAXException, TransformerException
+    {
+        // Find out whether the template is localized without generating a translet.
+        OXOEntityResolver entityResolver = new OXOEntityResolver(OXOContext.getTemplatesPackage(), OXOContext.getPropertiesPackage(), locales.get(0));
+        compile(template, entityResolver, null);
+
+        if (entityResolver.hasResolvedProperties())
+        {
+            for (Locale locale : locales)
+            {
+                compile(template, new OXOEntityResolver(OXOContext.getTemplatesPackage(), OXOContext.getPropertiesPackage(), locale), TemplateManager.getTransletName(template, locale));
+            }
+
+            return locales.size();
+        }
+        else
+        {
+            compile(template, entityResolver, TemplateManager.getTransletName(template, null));
+
+            return 1;
+        }
+    }
+
+    private void compile(String template, OXOEntityResolver entityResolver, String transletName) throws IOException, SAXException, TransformerException
+    {
+        TransformerFactory transformerFactory = new org.apache.xalan.xsltc.trax.TransformerFactoryImpl();
+        transformerFactory.setURIResolver(new OXOURIResolver(entityResolver));
+        transformerFactory.setErrorListener(new OXOErrorListener());
+
+        if (transletName != null)
+        {
+            transformerFactory.setAttribute("generate-translet", Boolean.TRUE);
+            transformerFactory.setAttribute("destination-directory", destinationDirectory.getAbsolutePath());
+            transformerFactory.setAttribute("package-name", transletsPackage);
+            transformerFactory.setAttribute("translet-name", transletName);
+        }
+
+        XMLReader xmlReader = XMLReaderFactory.createXMLReader();
+        xmlReader.setEntityResolver(entityResolver);
+
+        if (transformerFactory.newTemplates(new SAXSource(xmlReader, entityResolver.resolveEntity(null, template))) == null)
+        {
+            throw new TransformerException("XSLTC could not compile the template.");
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.centropoly.oxo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An invalidation bus that sends every event to each peer node in a UDP datagram. Each
+ * node listens on a port and is given the addresses of its peers; a node may list itself
+ * (its own events are ignored), so every node can be given the same list. Several nodes
+ * can run on one host on different ports, on the loopback address for example.
+ *
+ * Datagrams may be lost, in which case the cached responses on the peers that missed the
+ * event expire as usual. Datagrams are only accepted from the addresses of the peers (nodes
+ * send from the port they listen on), but as those can be spoofed, the bus should still only
+ * be reachable from within the cluster.
+ *
+ * @author Paul van der Maas
+ */
+public class UdpInvalidationBus implements InvalidationBus
+{
+    private final static Logger logger = LogManager.getLogger(UdpInvalidationBus.class);
+
+    private final static int MAGIC = 0x4F584F49;
+    private final static int MAXIMUM_PACKET_SIZE = 65507;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final DatagramSocket socket;
+    private final List<InetSocketAddress> peers;
+    private final Set<InetSocketAddress> peerAddresses;
+    private final List<Consumer<InvalidationEvent>> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param port the port to listen on, or 0 for any free port (see #getPort())
+     * @param peers the addresses of the peer nodes
+     * @throws SocketException if the port cannot be listened on
+     */
+    public UdpInvalidationBus(int port, Collection<InetSocketAddress> peers) throws SocketException
+    {
+        if (peers == null)
+        {
+            throw new IllegalArgumentException();
+        }
+
+        this.peers = new ArrayList<>(peers);
+        this.peerAddresses = new HashSet<>(peers);
+        this.socket = new DatagramSocket(port);
+
+        Thread receiver = new Thread(this::receive, "OXO invalidation bus (" + socket.getLocalPort() + ")");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public int getPort()
+    {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    @Override
+    public void publish(InvalidationEvent event)
+    {
+        byte[] data;
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try (DataOutputStream out = new DataOutputStream(bytes))
+            {
+                out.writeInt(MAGIC);
+                out.writeUTF(event.getType().name());
+                out.writeUTF(event.getValue());
+                out.writeUTF(event.getOrigin());
+            }
+            data = bytes.toByteArray();
+        }
+        catch (IOException exception)
+        {
+            // Values longer than 64K cannot be written.
+            logger.warn("The invalidation " + event + " could not be broadcast.", exception);
+            return;
+        }
+
+        if (data.length > MAXIMUM_PACKET_SIZE)
+        {
+            logger.warn("The invalidation " + event + " is too large to be broadcast.");
+            return;
+        }
+
+        for (InetSocketAddress peer : peers)
+        {
+            try
+            {
+                socket.send(new DatagramPacket(data, data.length, peer));
+            }
+            catch (IOException exception)
+            {
+                logger.warn("The invalidation " + event + " could not be sent to " + peer + ".", exception);
+            }
+        }
+    }
+
+    private void receive()
+    {
+        byte[] buffer = new byte[MAXIMUM_PACKET_SIZE];
+        while (!socket.isClosed())
+        {
+            try
+            {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+
+                if (!peerAddresses.contains(packet.getSocketAddress()))
+                {
+                    logger.debug("An invalidation from " + packet.getSocketAddress() + ", which is not a peer, was ignored.");
+                    continue;
+                }
+
+                InvalidationEvent event;
+                try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength())))
+                {
+                    if (in.readInt() != MAGIC)
+                    {
+                        continue; // Not for us.
+                    }
+                    event = new InvalidationEvent(InvalidationEvent.Type.valueOf(in.readUTF()), in.readUTF(), in.readUTF());
+                }
+
+                if (!event.getOrigin().equals(nodeId))
+                {
+                    for (Consumer<InvalidationEvent> subscriber : subscribers)
+                    {
+                        subscriber.accept(event);
+                    }
+                }
+            }
+            catch (IOException | IllegalArgumentException exception)
+            {
+                if (!socket.isClosed())
+                {
+                    logger.warn("An invalidation could not be received.", exception);
+                }
+            }
+            catch (RuntimeException exception)
+            {
+                logger.error("An invalidation could not be processed.", exception);
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<InvalidationEvent> subscriber)
+    {
+        subscribers.add(subscriber);
+    }
+
+    @Override
+    public void close()
+    {
+        socket.close();
+        subscribers.clear();
+    }
+}
@@ -1,17 +1,23 @@
 package com.centropoly.oxo;
 
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.TraxSource;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
+import java.io.OutputStreamWriter;
 import java.io.PipedOutputStream;
-import java.lang.Thread.UncaughtExceptionHandler;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 import org.apache.logging.log4j.LogManager;
@@ -32,7 +38,7 @@ import org.xml.sax.helpers.XMLReaderFactory;
  * is implemented as response.addException. Might be fine... just take a look.
  * 
  * NOTE
- * Why are we doing all this here? Can't we just use the logic in OXOServlet instead of this piping stuff...
+ * Why are we doing all this here? Can't we just use the logic in OXOServlet instead of transforming to JSON separately...
  * It seems like all we would really need to do is move the xslt filename lookup logic into an overrideable method and override that here...
  * TODO
  * Set up a test where we utilize what's in OXOServlet and see if we can get the same result. If not, make sure we document it here
@@ -44,12 +50,25 @@ public abstract class WebService extends OXOServlet
 {
     private final static Logger logger = LogManager.getLogger(WebService.class);
 
+    // Read by DefaultCacheKeyStrategy as well, JSON and XML responses are cached separately.
+    final static String RESPONSE_AS_JSON_ATTRIBUTE = WebService.class.getName() + ".responseAsJSON";
+
+    // The default; whether the response to a request is written as JSON is kept as a request attribute.
     private boolean responseAsJSON = false;
     private JsonOutputType jsonOutputType = JsonOutputType.JSON;
+    private boolean jsonSkipRoot = false;
+
+    // JSON is generated by the JSON templates unless it should be written by XStream directly.
+    private boolean nativeJsonOutput = false;
+
+    private final static Pattern JSONP_CALLBACK = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*(\\.[A-Za-z_$][A-Za-z0-9_$]*)*");
 
-    private String jsonXslTemplate = "template:/xmltojson.xsl"; // Requires an XSLT 2.0 Processor. Saxon is hard-coded into this class and thus is a dependency if this stylesheet is used (jsonOutputType = JSON).
+    private String jsonXslTemplate = "template:/xmltojson.xsl"; // Requires an XSLT 2.0 Processor. Saxon is hard-coded into this class and thus is a dependency if this stylesheet is used (jsonOutputType = JSON, nativeJsonOutput = false).
     private String jsonmlXslTemplate = "template:/xmltojsonml.xsl";
 
+    // Compiled JSON templates are shared by all web services.
+    private final static ConcurrentHashMap<String, PooledTemplates> jsonTemplates = new ConcurrentHashMap<>();
+
     @Override
     protected void init(OXORequest request, OXOResponse response)
     {
@@ -117,9 +136,16 @@ public abstract class WebService extends OXOServlet
     @Override
     protected void writeXMLToOutputStream(OXORequest request, OXOResponse response, OutputStream outputStream) throws IOException, SAXException, TransformerException, ReflectiveOperationException
     {
-        if (this.responseAsJSON)
+        if (this.responseAsJSON())
         {
-            writePipedXMLToOutputStreamAsJSON(request, response, outputStream);
+            if (this.nativeJsonOutput)
+            {
+                writeJSONToOutputStream(request, response, outputStream);
+            }
+            else
+            {
+                writeXMLToOutputStreamAsJSON(request, response, outputStream);
+            }
         }
         else
         {
@@ -128,72 +154,92 @@ public abstract class WebService extends OXOServlet
     }
     
     /**
-     * This needs to be in a call accessible from the runner.
+     * This method converts the response to JSON (or JSONML) using XStream directly, following
+     * the conventions of the JSON templates without generating or transforming any XML.
      * 
      * @param request
      * @param response
      * @param outputStream
      * @throws IOException
-     * @throws SAXException
-     * @throws TransformerException
-     * @throws ReflectiveOperationException 
+     * @throws TransformerException 
      */
-    protected void pipeWriteResponseDataToOutputStreamAsXML(OXORequest request, OXOResponse response, PipedOutputStream outputStream) throws IOException, SAXException, TransformerException, ReflectiveOperationException
-    {
-        super.writeXMLToOutputStream(request, response, outputStream);
-    }
-
-    protected void writePipedXMLToOutputStreamAsJSON(final OXORequest request, final OXOResponse response, OutputStream outputStream) throws IOException, SAXException, TransformerException
+    protected void writeJSONToOutputStream(OXORequest request, OXOResponse response, OutputStream outputStream) throws IOException, TransformerException
     {
         // We can only transform transformed XML or untransformed XML to JSON, hence the following requirement.
         if (response.getTransformationOutputType() == null || response.getTransformationOutputType() == OXOResponse.TransformationOutputType.XML)
         {
-            PipedInputStream pipedInputStream = new PipedInputStream();
-            final PipedOutputStream pipedOutputStream = new PipedOutputStream(pipedInputStream);
+            XStream xStream = getXStreamFromData(response.getData());
 
-            // To prevent deadlock, we have to perform the piping in another thread.
-            Runnable runner = new Runnable()
+            String jsonp = getJsonpCallback(request);
+
+            // Set important response headers if not already set...
+            String contentType = (response.isFinished()) ? null : response.getContentType();
+            if (contentType == null)
             {
-                @Override
-                public void run()
-                {
-                    try
-                    {
-                        pipeWriteResponseDataToOutputStreamAsXML(request, response, pipedOutputStream);
-                    }
-                    catch (IOException | SAXException | TransformerException | ReflectiveOperationException exception)
-                    {
-                        throw new RuntimeException(exception);
-                    }
-                    finally
-                    {
-                        try
-                        {
-                            pipedOutputStream.close();
-                        }
-                        catch (IOException exception)
-                        {
-                            throw new RuntimeException(exception);
-                        }
-                    }
-                }
-            };
-            
-            UncaughtExceptionHandler uncaughtExceptionHandler = new Thread.UncaughtExceptionHandler()
+                contentType = (jsonp != null) ? "application/javascript" : "application/json";
+            }
+            setContentHeaders(response, outputStream, contentType, "UTF-8");
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+
+            HierarchicalStreamWriter jsonWriter;
+            if (this.jsonOutputType == JsonOutputType.JSONML)
             {
-                @Override
-                public void uncaughtException(Thread thread, Throwable throwable)
-                {
-                    outputException(response, new Exception(throwable));
-                }
-            };
+                jsonWriter = new OXOJsonMLWriter(writer, jsonp);
+            }
+            else
+            {
+                jsonWriter = new OXOJsonWriter(writer, this.jsonSkipRoot, jsonp);
+            }
 
-            Thread thread = new Thread(runner);
-            thread.setUncaughtExceptionHandler(uncaughtExceptionHandler);
-            thread.start();
+            xStream.marshal(response, jsonWriter);
+            jsonWriter.flush();
+        }
+        else
+        {
+            throw new TransformerException("Only XML can be transformed to JSON. The response's output type was set to " + response.getTransformationOutputType());
+        }
+    }
 
-            // Create an entity resolver which will be used to resolve the XSL template.
-            OXOEntityResolver entityResolver = new OXOEntityResolver("com.centropoly.oxo.templates", null);
+    /**
+     * Get the JSONP callback requested with the jsonp request parameter, if any.
+     * Callbacks that are not (dotted) JavaScript identifiers are ignored.
+     * 
+     * @param request
+     * @return the callback or null
+     */
+    protected String getJsonpCallback(OXORequest request)
+    {
+        String jsonp = request.getParameter("jsonp");
+        if (jsonp != null && JSONP_CALLBACK.matcher(jsonp).matches())
+        {
+            return jsonp;
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    /**
+     * This method converts the response to XML using XStream and transforms it to JSON.
+     * 
+     * The SAX events produced by XStream are fed to the JSON transformation directly,
+     * so the XML is never serialized nor parsed.
+     * 
+     * @param request
+     * @param response
+     * @param outputStream
+     * @throws IOException
+     * @throws SAXException
+     * @throws TransformerException 
+     */
+    protected void writeXMLToOutputStreamAsJSON(OXORequest request, OXOResponse response, OutputStream outputStream) throws IOException, SAXException, TransformerException
+    {
+        // We can only transform transformed XML or untransformed XML to JSON, hence the following requirement.
+        if (response.getTransformationOutputType() == null || response.getTransformationOutputType() == OXOResponse.TransformationOutputType.XML)
+        {
+            XStream xStream = getXStreamFromData(response.getData());
 
             String xslTemplate = this.jsonXslTemplate;
             if (this.jsonOutputType == JsonOutputType.JSONML)
@@ -201,65 +247,53 @@ public abstract class WebService extends OXOServlet
                 xslTemplate = this.jsonmlXslTemplate;
             }
 
-            // Retrieve the Json XSL template.
-            InputSource inputSource = entityResolver.resolveEntity(null, xslTemplate);
+            SAXSource xmlSource = new TraxSource(response, xStream);
 
-            // Create an XML reader which will be used to process the XSL template.
-            XMLReader xmlReader = XMLReaderFactory.createXMLReader();
-            xmlReader.setEntityResolver(entityResolver);
+            try
+            {
+                PooledTemplates templates = getJsonTemplates(xslTemplate);
 
-            // Create the SAXSource objects.
-            SAXSource xslSource = new SAXSource(xmlReader, inputSource);
-            SAXSource xmlSource = new SAXSource(xmlReader, new InputSource(pipedInputStream));
+                Transformer transformer = templates.acquireTransformer();
+                transformer.setErrorListener(new OXOErrorListener());
 
-            // Create a transformer.
-            TransformerFactory transformerFactory;
-            if (this.jsonOutputType == JsonOutputType.JSON)
-            {
-                // The Saxon (HE) library by Saxonica must be included as a project dependency when outputting JSON.
-                // It is required to make the transformation from XML to JSON.
-                try
-                {
-                    transformerFactory = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
-                }
-                catch(TransformerFactoryConfigurationError error)
+                if (this.jsonOutputType == JsonOutputType.JSON)
                 {
-                    throw new TransformerException("The Saxon (HE) library is required to transform XML to JSON. Please make sure it is included as a project dependency.", error);
-                }
-            }
-            else
-            {
-                transformerFactory = TransformerFactory.newInstance();
-            }
-            transformerFactory.setErrorListener(new OXOErrorListener());
+                    transformer.setParameter("skip-root", this.jsonSkipRoot);
 
-            try
-            {
-                Transformer transformer = transformerFactory.newTransformer(xslSource);
+                    String jsonp = getJsonpCallback(request);
+                    if (jsonp != null)
+                    {
+                        transformer.setParameter("jsonp", jsonp);
+                    }
+                }
 
                 // Set important response headers if not already set...
-                if (response.getContentType() == null) {
-                    String mediaType = transformer.getOutputProperty("media-type");
+                String mediaType = (response.isFinished()) ? null : response.getContentType();
+                if (mediaType == null) {
+                    mediaType = transformer.getOutputProperty("media-type");
                     if (mediaType == null)
                     {
                         // Set the default.
                         mediaType = "application/json";
                     }
-                    response.setContentType(mediaType);
                 }
-                if (response.getCharacterEncoding() == null)
+                String encoding = (response.isFinished()) ? null : response.getCharacterEncoding();
+                if (encoding == null)
                 {
-                    String encoding = transformer.getOutputProperty("encoding");
+                    encoding = transformer.getOutputProperty("encoding");
                     if (encoding == null)
                     {
                         // Set the default.
                         encoding = "UTF-8";
                     }
-                    response.setCharacterEncoding(encoding);
                 }
+                setContentHeaders(response, outputStream, mediaType, encoding);
 
                 // Transform the XML to JSON.
                 transformer.transform(xmlSource, new StreamResult(outputStream));
+
+                // Transformers are only reused after successful transformations.
+                templates.releaseTransformer(transformer);
             }
             catch (TransformerException exception)
             {
@@ -272,10 +306,105 @@ public abstract class WebService extends OXOServlet
             throw new TransformerException("Only XML can be transformed to JSON. The response's output type was set to " + response.getTransformationOutputType());
         }
     }
+
+    /**
+     * Write the response as XML to the given piped output stream.
+     * 
+     * @param request
+     * @param response
+     * @param outputStream
+     * @throws IOException
+     * @throws SAXException
+     * @throws TransformerException
+     * @throws ReflectiveOperationException 
+     * @deprecated The XML is no longer piped to the JSON transformation, so overriding this
+     * method has no effect on JSON output anymore; see #writeXMLToOutputStreamAsJSON().
+     */
+    @Deprecated
+    protected void pipeWriteResponseDataToOutputStreamAsXML(OXORequest request, OXOResponse response, PipedOutputStream outputStream) throws IOException, SAXException, TransformerException, ReflectiveOperationException
+    {
+        super.writeXMLToOutputStream(request, response, outputStream);
+    }
+
+    /**
+     * Transform the response to JSON.
+     * 
+     * @param request
+     * @param response
+     * @param outputStream
+     * @throws IOException
+     * @throws SAXException
+     * @throws TransformerException 
+     * @deprecated Use #writeXMLToOutputStreamAsJSON(), which this method calls; the XML is no
+     * longer piped through another thread.
+     */
+    @Deprecated
+    protected void writePipedXMLToOutputStreamAsJSON(final OXORequest request, final OXOResponse response, OutputStream outputStream) throws IOException, SAXException, TransformerException
+    {
+        writeXMLToOutputStreamAsJSON(request, response, outputStream);
+    }
     
+    /**
+     * Get the compiled JSON template. The JSON templates are compiled once and shared by all web services.
+     * 
+     * @param xslTemplate
+     * @return
+     * @throws IOException
+     * @throws SAXException
+     * @throws TransformerException 
+     */
+    protected PooledTemplates getJsonTemplates(String xslTemplate) throws IOException, SAXException, TransformerException
+    {
+        PooledTemplates templates = jsonTemplates.get(xslTemplate);
+        if (templates == null)
+        {
+            // Create an entity resolver which will be used to resolve the XSL template.
+            OXOEntityResolver entityResolver = new OXOEntityResolver("com.centropoly.oxo.templates", null);
+
+            // Retrieve the Json XSL template.
+            InputSource inputSource = entityResolver.resolveEntity(null, xslTemplate);
+
+            // Create an XML reader which will be used to process the XSL template.
+            XMLReader xmlReader = XMLReaderFactory.createXMLReader();
+            xmlReader.setEntityResolver(entityResolver);
+
+            SAXSource xslSource = new SAXSource(xmlReader, inputSource);
+
+            TransformerFactory transformerFactory;
+            if (xslTemplate.equals(this.jsonXslTemplate))
+            {
+                // The Saxon (HE) library by Saxonica must be included as a project dependency when outputting JSON.
+                // It is required to make the transformation from XML to JSON.
+                transformerFactory = TransformerFactories.getSaxonTransformerFactory();
+            }
+            else
+            {
+                transformerFactory = TransformerFactories.getTransformerFactory();
+            }
+
+            templates = new PooledTemplates(TransformerFactories.newTemplates(transformerFactory, xslSource, new OXOURIResolver(entityResolver)));
+
+            PooledTemplates cachedTemplates = jsonTemplates.putIfAbsent(xslTemplate, templates);
+            if (cachedTemplates != null)
+            {
+                templates = cachedTemplates;
+            }
+        }
+
+        return templates;
+    }
+
+    /**
+     * Whether the response to the current request is written as JSON.
+     * 
+     * @return 
+     */
     public boolean responseAsJSON()
     {
-        return this.responseAsJSON;
+        OXORequest request = OXOContext.getRequest();
+        Object responseAsJSON = (request != null) ? request.getAttribute(RESPONSE_AS_JSON_ATTRIBUTE) : null;
+
+        return (responseAsJSON != null) ? (Boolean) responseAsJSON : this.responseAsJSON;
     }
     
     public void setResponseAsJSON()
@@ -283,9 +412,23 @@ public abstract class WebService extends OXOServlet
         setResponseAsJSON(true);
     }
     
+    /**
+     * Set whether the response to the current request is written as JSON. Outside of
+     * a request, this sets the default for all requests.
+     * 
+     * @param responseAsJSON 
+     */
     public void setResponseAsJSON(boolean responseAsJSON)
     {
-        this.responseAsJSON = responseAsJSON;
+        OXORequest request = OXOContext.getRequest();
+        if (request != null)
+        {
+            request.setAttribute(RESPONSE_AS_JSON_ATTRIBUTE, responseAsJSON);
+        }
+        else
+        {
+            this.responseAsJSON = responseAsJSON;
+        }
     }
 
     public void setJsonOutputType(JsonOutputType jsonOutputType)
@@ -293,6 +436,24 @@ public abstract class WebService extends OXOServlet
         this.jsonOutputType = jsonOutputType;
     }
 
+    public void setJsonSkipRoot(boolean jsonSkipRoot)
+    {
+        this.jsonSkipRoot = jsonSkipRoot;
+    }
+
+    /**
+     * Whether JSON is written by XStream directly or generated by transforming XML
+     * using the JSON templates (the default). The latter requires the Saxon (HE)
+     * library for JSON (not JSONML) output. Native output follows the conventions
+     * of the templates, but is not guaranteed to be identical in every detail.
+     * 
+     * @param nativeJsonOutput 
+     */
+    public void setNativeJsonOutput(boolean nativeJsonOutput)
+    {
+        this.nativeJsonOutput = nativeJsonOutput;
+    }
+
     public enum JsonOutputType
     {
         JSONML ("jsonml"),
@@ -0,0 +1,74 @@
+package com.centropoly.oxo;
+
+import com.centropoly.oxo.converters.ClientConverter;
+import com.centropoly.oxo.converters.DateTimeConverter;
+import com.centropoly.oxo.converters.LocaleConverter;
+import com.centropoly.oxo.converters.NullWrappingCollectionConverter;
+import com.centropoly.oxo.converters.OXORequestConverter;
+import com.centropoly.oxo.converters.OXOResponseConverter;
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.DomDriver;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class manages the XStream instances used to convert responses into XML in the OXO framework.
+ * 
+ * Creating and configuring an XStream instance (in particular processing annotations) is expensive.
+ * Once configured, an XStream instance can be used to marshal objects by multiple threads at once,
+ * so one instance is configured per data class and shared between requests.
+ * 
+ * Converters must therefore not hold any request state. Request state they need, like the
+ * current user, is put into the marshalling context by OXOResponseConverter.
+ * 
+ * @author Paul van der Maas
+ */
+public final class XStreamManager
+{
+    private final ConcurrentHashMap<Class<? extends Data>, XStream> xStreams = new ConcurrentHashMap<>();
+
+    /**
+     * Get the XStream instance configured for the given data (class).
+     * 
+     * @param data the data, may be null
+     * @return 
+     */
+    public XStream getXStream(Data data)
+    {
+        return xStreams.computeIfAbsent((data != null) ? data.getClass() : Data.class, this::createXStream);
+    }
+
+    private XStream createXStream(Class<? extends Data> dataClass)
+    {
+        // Convert the response object into XML using XStream.
+        XStream xStream = new XStream(new DomDriver());
+        xStream.setMode(XStream.NO_REFERENCES);
+
+        // TODO
+        // For the converters I'm registering here, I should not have to annotate anywhere I believe.
+        // Test and remove annotations that are redundant.
+        xStream.registerConverter(new OXOResponseConverter());
+        xStream.registerConverter(new OXORequestConverter());
+        xStream.registerConverter(new ClientConverter(), XStream.PRIORITY_LOW);
+        xStream.registerConverter(new LocaleConverter());
+        xStream.registerConverter(new DateTimeConverter());
+        // TODO
+        // This is a WIP to deal with null values in collections. Right now, it's fine in XML,
+        // but when converted to JSON, it breaks the list structure.
+        // We can fix it by wrapping the <null/> values in the same XML element as it's siblings,
+        // maybe NamedCollectionConverter fixes it (test), or maybe just remove this
+        // and deal with list's containing nulls in another way.
+        xStream.registerConverter(new NullWrappingCollectionConverter(xStream.getMapper()));
+        xStream.aliasType("response", OXOResponse.class);
+
+        if (dataClass != Data.class)
+        {
+            // In case the data object is a non-static inner class, this will
+            // omit the reference to the outer class.
+            xStream.omitField(dataClass, "this$0");
+
+            xStream.processAnnotations(dataClass);
+        }
+
+        return xStream;
+    }
+}
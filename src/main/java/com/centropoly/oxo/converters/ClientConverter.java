@@ -10,6 +10,8 @@ import javax.servlet.http.Cookie;
 
 public class ClientConverter implements Converter
 {
+    private final LocaleConverter localeConverter = new LocaleConverter();
+
     @Override
     public boolean canConvert(Class clazz)
     {
@@ -39,7 +41,7 @@ public class ClientConverter implements Converter
         }
 
         writer.startNode("locale");
-        context.convertAnother(client.getLocale(), new LocaleConverter());
+        context.convertAnother(client.getLocale(), localeConverter);
         writer.endNode();
     }
 
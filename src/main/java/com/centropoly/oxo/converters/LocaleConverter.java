@@ -21,18 +21,21 @@ public class LocaleConverter implements Converter
     {
         @SuppressWarnings("unchecked")
         Locale locale = (Locale) object;
-        
+
+        // Display names are given in the user's language.
+        Locale displayLocale = OXOContext.getUser().getPreferences().getLocale();
+
         writer.startNode("languageCode");
         writer.setValue(locale.getLanguage());
         writer.endNode();
         writer.startNode("language");
-        writer.setValue(locale.getDisplayLanguage(OXOContext.getUser().getPreferences().getLocale()));
+        writer.setValue(locale.getDisplayLanguage(displayLocale));
         writer.endNode();
         writer.startNode("countryCode");
         writer.setValue(locale.getCountry());
         writer.endNode();
         writer.startNode("country");
-        writer.setValue(locale.getDisplayCountry(OXOContext.getUser().getPreferences().getLocale()));
+        writer.setValue(locale.getDisplayCountry(displayLocale));
         writer.endNode();
     }
 
@@ -0,0 +1,73 @@
+package com.centropoly.oxo;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncEvent;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Paul van der Maas
+ */
+public class AsyncCompletionTest
+{
+    @Test
+    public void testCompletesOnce() throws Exception
+    {
+        ServletMocks.Async async = new ServletMocks.Async();
+        AsyncCompletion asyncCompletion = AsyncCompletion.start(ServletMocks.request(null, Collections.emptyMap(), async.asyncContext), 1000);
+        assertEquals(1, async.listeners.size());
+
+        AtomicInteger finished = new AtomicInteger();
+        asyncCompletion.addFinishListener(finished::incrementAndGet);
+        assertFalse(asyncCompletion.isFinished());
+
+        asyncCompletion.complete();
+        asyncCompletion.complete();
+        assertTrue(asyncCompletion.isFinished());
+        assertEquals(1, async.completions);
+
+        // The container confirms it.
+        async.listeners.get(0).onComplete(new AsyncEvent(async.asyncContext));
+        assertEquals(1, finished.get());
+
+        // Listeners added afterwards run right away.
+        asyncCompletion.addFinishListener(finished::incrementAndGet);
+        assertEquals(2, finished.get());
+    }
+
+    @Test
+    public void testTimeoutIsLeftToTheContainer() throws Exception
+    {
+        ServletMocks.Async async = new ServletMocks.Async();
+        AsyncCompletion asyncCompletion = AsyncCompletion.start(ServletMocks.request(null, Collections.emptyMap(), async.asyncContext), 1000);
+
+        AtomicInteger finished = new AtomicInteger();
+        asyncCompletion.addFinishListener(finished::incrementAndGet);
+
+        async.listeners.get(0).onTimeout(new AsyncEvent(async.asyncContext));
+        assertTrue(asyncCompletion.isFinished());
+        assertEquals(1, finished.get());
+
+        // Once timed out, the request is no longer ours to complete.
+        asyncCompletion.complete();
+        assertEquals(0, async.completions);
+
+        // Listeners are called once.
+        async.listeners.get(0).onComplete(new AsyncEvent(async.asyncContext));
+        assertEquals(1, finished.get());
+    }
+
+    @Test
+    public void testErrorIsLeftToTheContainer() throws Exception
+    {
+        ServletMocks.Async async = new ServletMocks.Async();
+        AsyncCompletion asyncCompletion = AsyncCompletion.start(ServletMocks.request(null, Collections.emptyMap(), async.asyncContext), -1);
+
+        async.listeners.get(0).onError(new AsyncEvent(async.asyncContext));
+        assertTrue(asyncCompletion.isFinished());
+
+        asyncCompletion.complete();
+        assertEquals(0, async.completions);
+    }
+}
@@ -0,0 +1,446 @@
+package com.centropoly.oxo;
+
+import com.centropoly.oxo.CachedResponseManager.CachedResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Paul van der Maas
+ */
+public class CachedResponseManagerTest
+{
+    private CachedResponseManager cachedResponseManager;
+
+    @BeforeEach
+    public void setUp()
+    {
+        cachedResponseManager = new CachedResponseManager();
+
+        // Requests share a cached response if they have the same query string.
+        cachedResponseManager.setCacheKeyStrategy(new CacheKeyStrategy()
+        {
+            @Override
+            public String createCacheKey(OXORequest request, OXOResponse response)
+            {
+                return request.getQueryString();
+            }
+
+            @Override
+            public Collection<String> getVaryHeaders(OXORequest request, OXOResponse response)
+            {
+                return Collections.emptyList();
+            }
+        });
+    }
+
+    @Test
+    public void testOnlyOneResponseIsPendingPerKey() throws IOException
+    {
+        Exchange first = new Exchange("page=1");
+        Exchange second = new Exchange("page=1");
+
+        CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(first.request, first.response);
+        assertNotNull(cachedResponse);
+        assertNull(cachedResponseManager.createCachedResponse(second.request, second.response));
+        assertSame(cachedResponse, cachedResponseManager.getPendingCachedResponse(second.request, second.response));
+
+        // Other keys are not held up.
+        Exchange other = new Exchange("page=2");
+        assertNotNull(cachedResponseManager.createCachedResponse(other.request, other.response));
+    }
+
+    @Test
+    public void testCompletedResponseIsPublished() throws IOException
+    {
+        Exchange first = new Exchange("page=1");
+        CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(first.request, first.response);
+        write(cachedResponse.outputStream, "body");
+
+        Exchange second = new Exchange("page=1");
+        assertNull(cachedResponseManager.getCachedResponse(second.request, second.response));
+
+        cachedResponseManager.completeCachedResponse(first.request, first.response, cachedResponse.outputStream);
+
+        assertNull(cachedResponseManager.getPendingCachedResponse(second.request, second.response));
+        assertSame(cachedResponse, cachedResponseManager.getCachedResponse(second.request, second.response));
+        assertEquals("body", read(cachedResponse.outputStream));
+        assertEquals(1, cachedResponseManager.size());
+
+        // The response can be rebuilt now.
+        Exchange third = new Exchange("page=1");
+        assertNotNull(cachedResponseManager.createCachedResponse(third.request, third.response));
+    }
+
+    @Test
+    public void testAbortedResponseIsNotCached() throws IOException
+    {
+        Exchange first = new Exchange("page=1");
+        CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(first.request, first.response);
+        write(cachedResponse.outputStream, "partial");
+
+        cachedResponseManager.abortCachedResponse(first.request, first.response, cachedResponse.outputStream);
+
+        Exchange second = new Exchange("page=1");
+        assertNull(cachedResponseManager.getPendingCachedResponse(second.request, second.response));
+        assertNull(cachedResponseManager.getCachedResponse(second.request, second.response));
+        assertThrows(IOException.class, () -> cachedResponse.outputStream.writeTo(new ByteArrayOutputStream()));
+        assertNotNull(cachedResponseManager.createCachedResponse(second.request, second.response));
+    }
+
+    @Test
+    public void testResponseInvalidatedWhilePendingIsNotCached() throws IOException
+    {
+        Exchange first = new Exchange("page=1");
+        CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(first.request, first.response);
+        write(cachedResponse.outputStream, "outdated");
+
+        cachedResponseManager.invalidateKey("page=1");
+        cachedResponseManager.completeCachedResponse(first.request, first.response, cachedResponse.outputStream);
+
+        // Whoever streams it still gets all of it.
+        assertEquals("outdated", read(cachedResponse.outputStream));
+
+        Exchange second = new Exchange("page=1");
+        assertNull(cachedResponseManager.getPendingCachedResponse(second.request, second.response));
+        assertNull(cachedResponseManager.getCachedResponse(second.request, second.response));
+        assertEquals(0, cachedResponseManager.size());
+    }
+
+    @Test
+    public void testConcurrentRequestsShareThePendingResponse() throws Exception
+    {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch waiting = new CountDownLatch(threads - 1);
+            List<Future<String>> results = new ArrayList<>();
+            AtomicInteger writers = new AtomicInteger();
+
+            for (int i = 0; i < threads; i++)
+            {
+                results.add(executor.submit(() ->
+                {
+                    Exchange exchange = new Exchange("page=1");
+                    start.await();
+
+                    CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(exchange.request, exchange.response);
+                    if (cachedResponse != null)
+                    {
+                        writers.incrementAndGet();
+                        for (int j = 0; j < 100; j++)
+                        {
+                            write(cachedResponse.outputStream, j + ",");
+                            if (j == 50)
+                            {
+                                // Halfway, all other requests are streaming the pending response.
+                                assertTrue(waiting.await(10, TimeUnit.SECONDS));
+                            }
+                        }
+                        cachedResponseManager.completeCachedResponse(exchange.request, exchange.response, cachedResponse.outputStream);
+                        return read(cachedResponse.outputStream);
+                    }
+
+                    cachedResponse = cachedResponseManager.getPendingCachedResponse(exchange.request, exchange.response);
+                    waiting.countDown();
+                    return read(cachedResponse.outputStream);
+                }));
+            }
+            start.countDown();
+
+            StringBuilder expected = new StringBuilder();
+            for (int j = 0; j < 100; j++)
+            {
+                expected.append(j).append(',');
+            }
+            for (Future<String> result : results)
+            {
+                assertEquals(expected.toString(), result.get(10, TimeUnit.SECONDS));
+            }
+
+            // Only the first request wrote the response; once written it is no longer pending.
+            assertEquals(1, writers.get());
+            Exchange exchange = new Exchange("page=1");
+            assertNull(cachedResponseManager.getPendingCachedResponse(exchange.request, exchange.response));
+            assertEquals(expected.toString(), read(cachedResponseManager.getCachedResponse(exchange.request, exchange.response).outputStream));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCompletedResponseReplacesPreviousOneAtOnce() throws IOException
+    {
+        Exchange first = new Exchange("page=1");
+        CachedResponse previousResponse = cachedResponseManager.createCachedResponse(first.request, first.response);
+        write(previousResponse.outputStream, "previous");
+        cachedResponseManager.completeCachedResponse(first.request, first.response, previousResponse.outputStream);
+
+        // While the response is rebuilt, the previous one is still served.
+        Exchange second = new Exchange("page=1");
+        CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(second.request, second.response);
+        write(cachedResponse.outputStream, "curr");
+
+        Exchange third = new Exchange("page=1");
+        assertSame(previousResponse, cachedResponseManager.getCachedResponse(third.request, third.response));
+
+        write(cachedResponse.outputStream, "ent");
+        cachedResponseManager.completeCachedResponse(second.request, second.response, cachedResponse.outputStream);
+
+        Exchange fourth = new Exchange("page=1");
+        assertEquals("current", read(cachedResponseManager.getCachedResponse(fourth.request, fourth.response).outputStream));
+        assertEquals(1, cachedResponseManager.size());
+        assertEquals(cachedResponse.getSize(), cachedResponseManager.getWeight());
+    }
+
+    @Test
+    public void testWeightIsBounded() throws IOException
+    {
+        cachedResponseManager.setMaximumWeight(100);
+
+        cache("page=a", "a".repeat(40), 3);
+        cache("page=b", "b".repeat(40), 2);
+        assertEquals(80, cachedResponseManager.getWeight());
+
+        // Requested less often than the least recently used response, so it is not admitted.
+        cache("page=c", "c".repeat(40), 1);
+        assertEquals(2, cachedResponseManager.size());
+        assertEquals(80, cachedResponseManager.getWeight());
+
+        // Requested more often, so it replaces the least recently used response.
+        cache("page=d", "d".repeat(40), 5);
+        assertEquals(2, cachedResponseManager.size());
+        assertEquals(80, cachedResponseManager.getWeight());
+        assertFalse(isCached("page=a"));
+        assertTrue(isCached("page=b"));
+        assertFalse(isCached("page=c"));
+        assertTrue(isCached("page=d"));
+
+        cachedResponseManager.setMaximumWeight(0);
+        assertEquals(0, cachedResponseManager.size());
+        assertEquals(0, cachedResponseManager.getWeight());
+    }
+
+    @Test
+    public void testGzipVariant() throws IOException
+    {
+        cachedResponseManager.setCompression(CachedResponseManager.Compression.GZIP);
+
+        String body = "compressible ".repeat(100);
+        cache("page=1", body, 1);
+
+        CachedResponse cachedResponse = getCachedResponse("page=1");
+        assertEquals(body, read(cachedResponse.outputStream));
+        assertEquals(body, gunzip(cachedResponse.gzipOutputStream));
+        assertTrue(cachedResponse.gzipOutputStream.size() < cachedResponse.outputStream.size());
+        assertEquals(cachedResponse.outputStream.size() + cachedResponse.gzipOutputStream.size(), cachedResponseManager.getWeight());
+
+        // Each variant has its own entity tag.
+        assertNotNull(cachedResponse.getETag(false));
+        assertNotEquals(cachedResponse.getETag(false), cachedResponse.getETag(true));
+
+        // Compressing it would not make it smaller.
+        cache("page=2", "x", 1);
+        assertNull(getCachedResponse("page=2").gzipOutputStream);
+    }
+
+    @Test
+    public void testGzipOnlyKeepsPendingResponseReadable() throws IOException
+    {
+        cachedResponseManager.setCompression(CachedResponseManager.Compression.GZIP_ONLY);
+
+        String body = "compressible ".repeat(100);
+        Exchange first = new Exchange("page=1");
+        CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(first.request, first.response);
+        write(cachedResponse.outputStream, body);
+
+        // A request that streams the response while it is pending.
+        Exchange second = new Exchange("page=1");
+        CachedOutputStream pendingOutputStream = cachedResponseManager.getPendingCachedResponse(second.request, second.response).outputStream;
+
+        cachedResponseManager.completeCachedResponse(first.request, first.response, cachedResponse.outputStream);
+
+        assertEquals(body, read(pendingOutputStream));
+
+        // Only the compressed variant is cached.
+        assertNull(cachedResponse.outputStream);
+        assertEquals(body, gunzip(cachedResponse.gzipOutputStream));
+        assertEquals(cachedResponse.gzipOutputStream.size(), cachedResponseManager.getWeight());
+    }
+
+    @Test
+    public void testInvalidation() throws IOException
+    {
+        cache("page=1", "1", 1, new TaggedData("product:1", "category:1"));
+        cache("page=2", "2", 1, new TaggedData("product:2", "category:1"));
+        cache("page=3", "3", 1, null);
+
+        assertEquals(0, cachedResponseManager.invalidateTag("product:3"));
+        assertEquals(1, cachedResponseManager.invalidateTag("product:1"));
+        assertFalse(isCached("page=1"));
+        assertTrue(isCached("page=2"));
+
+        assertEquals(1, cachedResponseManager.invalidateDataClass(TaggedData.class));
+        assertFalse(isCached("page=2"));
+        assertTrue(isCached("page=3"));
+
+        assertEquals(0, cachedResponseManager.invalidatePrefix("/other"));
+        assertEquals(1, cachedResponseManager.invalidatePrefix("/pa"));
+        assertEquals(0, cachedResponseManager.size());
+        assertEquals(0, cachedResponseManager.getWeight());
+    }
+
+    @Test
+    public void testTagInvalidatesPendingResponses() throws IOException
+    {
+        // The tags of a pending response are not known until it is complete.
+        Exchange exchange = new Exchange("page=1");
+        exchange.response.setData(new TaggedData("product:1"));
+        CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(exchange.request, exchange.response);
+        write(cachedResponse.outputStream, "outdated");
+
+        cachedResponseManager.invalidateTag("product:2");
+        cachedResponseManager.completeCachedResponse(exchange.request, exchange.response, cachedResponse.outputStream);
+
+        assertFalse(isCached("page=1"));
+    }
+
+    @Test
+    public void testWarmRestartFromDisk(@TempDir File directory) throws IOException
+    {
+        cachedResponseManager.setDiskCache(directory, 1024 * 1024);
+        cache("page=1", "body", 1, new TaggedData("product:1"));
+        cache("page=2", "body", 1, new TaggedData("product:2"));
+        String eTag = getCachedResponse("page=1").getETag(false);
+        cachedResponseManager.close();
+
+        setUp();
+        cachedResponseManager.setDiskCache(directory, 1024 * 1024);
+        assertEquals(0, cachedResponseManager.size());
+
+        CachedResponse cachedResponse = getCachedResponse("page=1");
+        assertEquals("body", read(cachedResponse.outputStream));
+        assertEquals(eTag, cachedResponse.getETag(false));
+        assertEquals(1, cachedResponseManager.size());
+
+        // Responses on disk are invalidated as well.
+        assertEquals(1, cachedResponseManager.invalidateTag("product:2"));
+        assertNull(getCachedResponse("page=2"));
+        cachedResponseManager.close();
+    }
+
+    private CachedResponse getCachedResponse(String queryString) throws IOException
+    {
+        Exchange exchange = new Exchange(queryString);
+        return cachedResponseManager.getCachedResponse(exchange.request, exchange.response);
+    }
+
+    private static String gunzip(CachedOutputStream outputStream) throws IOException
+    {
+        try (InputStream in = new GZIPInputStream(outputStream.newInputStream()))
+        {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Cache a response that was requested the given number of times.
+    private void cache(String queryString, String body, int accesses) throws IOException
+    {
+        cache(queryString, body, accesses, null);
+    }
+
+    private void cache(String queryString, String body, int accesses, Data data) throws IOException
+    {
+        Exchange exchange = new Exchange(queryString);
+        exchange.response.setData(data);
+        for (int i = 0; i < accesses; i++)
+        {
+            cachedResponseManager.recordAccess(exchange.request, exchange.response);
+        }
+
+        CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(exchange.request, exchange.response);
+        write(cachedResponse.outputStream, body);
+        cachedResponseManager.completeCachedResponse(exchange.request, exchange.response, cachedResponse.outputStream);
+    }
+
+    private boolean isCached(String queryString) throws IOException
+    {
+        return getCachedResponse(queryString) != null;
+    }
+
+    static void write(CachedOutputStream outputStream, String body) throws IOException
+    {
+        outputStream.write(body.getBytes(StandardCharsets.UTF_8));
+        outputStream.flush();
+    }
+
+    static String read(CachedOutputStream outputStream) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        outputStream.writeTo(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    static final class TaggedData extends Data
+    {
+        private final Set<String> tags;
+
+        TaggedData(String... tags)
+        {
+            this.tags = Set.of(tags);
+        }
+
+        @Override
+        public void build(OXORequest request, OXOResponse response)
+        {
+        }
+
+        @Override
+        public Collection<String> getCacheTags()
+        {
+            return tags;
+        }
+    }
+
+    // A request and its response.
+    static final class Exchange
+    {
+        final ServletMocks.Output output = new ServletMocks.Output();
+        final OXORequest request;
+        final OXOResponse response;
+
+        Exchange(String queryString) throws IOException
+        {
+            this(queryString, Collections.emptyMap());
+        }
+
+        Exchange(String queryString, Map<String, String> headers) throws IOException
+        {
+            request = new OXORequest(ServletMocks.request(queryString, headers));
+            response = new OXOResponse(ServletMocks.response(output));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.centropoly.oxo;
+
+import com.centropoly.oxo.CachedResponseManagerTest.Exchange;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Paul van der Maas
+ */
+public class DataLoaderTest
+{
+    // The batches loaded by #load().
+    private final List<Set<Integer>> batches = new CopyOnWriteArrayList<>();
+
+    // Loads the key times ten, except for the keys 0 (which have no value) and 13 (which fail).
+    private Map<Integer, String> load(Set<Integer> keys) throws Exception
+    {
+        batches.add(keys);
+        if (keys.contains(13))
+        {
+            throw new IllegalStateException("13");
+        }
+
+        Map<Integer, String> values = new HashMap<>();
+        for (Integer key : keys)
+        {
+            if (key != 0)
+            {
+                values.put(key, String.valueOf(key * 10));
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void testKeysAreLoadedInBatches() throws Exception
+    {
+        DataLoader<Integer, String> dataLoader = new DataLoader<>(this::load, 2);
+
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int key = 1; key <= 5; key++)
+        {
+            futures.add(dataLoader.load(key));
+        }
+        assertTrue(dataLoader.isPending());
+        assertTrue(batches.isEmpty());
+
+        assertTrue(dataLoader.dispatch());
+        assertFalse(dataLoader.isPending());
+        assertEquals(List.of(Set.of(1, 2), Set.of(3, 4), Set.of(5)), batches);
+        for (int key = 1; key <= 5; key++)
+        {
+            assertEquals(String.valueOf(key * 10), futures.get(key - 1).getNow(null));
+        }
+
+        assertFalse(dataLoader.dispatch());
+        assertEquals(3, batches.size());
+    }
+
+    @Test
+    public void testKeysAreLoadedOnce() throws Exception
+    {
+        DataLoader<Integer, String> dataLoader = new DataLoader<>(this::load, 10);
+
+        CompletableFuture<String> future = dataLoader.load(1);
+        assertSame(future, dataLoader.load(1));
+        dataLoader.load(0);
+        dataLoader.load(1);
+        dataLoader.dispatch();
+        assertEquals(List.of(Set.of(1, 0)), batches);
+
+        // Memoized for the rest of the request.
+        assertSame(future, dataLoader.load(1));
+        assertFalse(dataLoader.isPending());
+        assertEquals("10", dataLoader.get(1));
+        assertNull(dataLoader.get(0));
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void testFailuresArePropagated() throws Exception
+    {
+        DataLoader<Integer, String> dataLoader = new DataLoader<>(this::load, 2);
+
+        CompletableFuture<String> first = dataLoader.load(1);
+        CompletableFuture<String> second = dataLoader.load(2);
+        CompletableFuture<String> failing = dataLoader.load(13);
+        CompletableFuture<String> sameBatch = dataLoader.load(14);
+        CompletableFuture<String> nextBatch = dataLoader.load(3);
+
+        Exception exception = assertThrows(IllegalStateException.class, () -> dataLoader.dispatch());
+        assertEquals("13", exception.getMessage());
+
+        // Only the keys of the failed batch fail, with the failure of the batch function.
+        assertEquals("10", first.getNow(null));
+        assertEquals("20", second.getNow(null));
+        assertEquals("30", nextBatch.getNow(null));
+        for (CompletableFuture<String> future : List.of(failing, sameBatch))
+        {
+            CompletionException completionException = assertThrows(CompletionException.class, () -> future.join());
+            assertSame(exception, completionException.getCause());
+        }
+
+        // Failures are memoized as well; get() throws them as they are.
+        assertSame(exception, assertThrows(IllegalStateException.class, () -> dataLoader.get(14)));
+        assertEquals(3, batches.size());
+    }
+
+    @Test
+    public void testGetLoadsWhatHasBeenAskedForSoFar() throws Exception
+    {
+        DataLoader<Integer, String> dataLoader = new DataLoader<>(this::load, 1);
+
+        CompletableFuture<String> future = dataLoader.load(1);
+        assertEquals("20", dataLoader.get(2));
+        assertEquals("10", future.getNow(null));
+        assertEquals(List.of(Set.of(1), Set.of(2)), batches);
+
+        // Failures of other batches are for whoever asked for them.
+        CompletableFuture<String> failing = dataLoader.load(13);
+        dataLoader.load(3);
+        assertEquals("40", dataLoader.get(4));
+        assertTrue(failing.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testLoadersAreDispatchedUntilNothingIsLeft() throws Exception
+    {
+        ExecutorService buildExecutor = Executors.newFixedThreadPool(4);
+        try
+        {
+            Exchange exchange = new Exchange("page=1");
+            exchange.response.setBuildExecutor(buildExecutor);
+
+            DataLoader<Integer, String> dataLoader = exchange.request.getDataLoader("numbers", this::load);
+            assertSame(dataLoader, exchange.request.getDataLoader("numbers", (keys) -> null));
+
+            // The value of one key leads to another, which is loaded in the next round.
+            List<String> values = new CopyOnWriteArrayList<>();
+            dataLoader.load(1).thenAccept((value) ->
+            {
+                values.add(value);
+                dataLoader.load(Integer.parseInt(value)).thenAccept(values::add);
+            });
+            dataLoader.load(2).thenAccept(values::add);
+
+            // As the servlet does once the data has been built.
+            do
+            {
+                exchange.response.joinForks();
+            }
+            while (exchange.request.dispatchDataLoaders(exchange.response));
+
+            assertEquals(List.of(Set.of(1, 2), Set.of(10)), batches);
+            assertEquals(Set.of("10", "20", "100"), Set.copyOf(values));
+            assertFalse(exchange.response.hasExceptions());
+        }
+        finally
+        {
+            buildExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInvalidArguments()
+    {
+        assertThrows(IllegalArgumentException.class, () -> new DataLoader<Integer, String>(null, 1));
+        assertThrows(IllegalArgumentException.class, () -> new DataLoader<Integer, String>(this::load, 0));
+        assertThrows(IllegalArgumentException.class, () -> new DataLoader<Integer, String>(this::load, 1).load(null));
+    }
+}
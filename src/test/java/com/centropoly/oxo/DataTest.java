@@ -0,0 +1,157 @@
+package com.centropoly.oxo;
+
+import com.centropoly.oxo.CachedResponseManagerTest.Exchange;
+import java.io.IOException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Paul van der Maas
+ */
+public class DataTest
+{
+    private ExecutorService buildExecutor;
+    private Exchange exchange;
+
+    @BeforeEach
+    public void setUp() throws IOException
+    {
+        buildExecutor = Executors.newFixedThreadPool(4);
+
+        exchange = new Exchange("page=1");
+        exchange.response.setBuildExecutor(buildExecutor);
+        OXOContext.setRequest(exchange.request);
+        OXOContext.setResponse(exchange.response);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        OXOContext.clear();
+        buildExecutor.shutdownNow();
+    }
+
+    static class Child extends Data
+    {
+        private final CyclicBarrier barrier;
+        volatile OXORequest request;
+        volatile Child grandchild;
+
+        Child(CyclicBarrier barrier)
+        {
+            this.barrier = barrier;
+        }
+
+        @Override
+        public void build(OXORequest request, OXOResponse response) throws Exception
+        {
+            // The request is in scope on the thread it is built on.
+            this.request = OXOContext.getRequest();
+
+            if (barrier != null)
+            {
+                // Only passes if both children are built at the same time.
+                barrier.await(10, TimeUnit.SECONDS);
+                grandchild = buildConcurrently(new Child(null));
+            }
+        }
+    }
+
+    static class Parent extends Data
+    {
+        Child first;
+        Child second;
+        volatile String loaded;
+        Future<Integer> count;
+
+        @Override
+        public void build(OXORequest request, OXOResponse response)
+        {
+            CyclicBarrier barrier = new CyclicBarrier(2);
+            first = buildConcurrently(new Child(barrier));
+            second = buildConcurrently(new Child(barrier));
+
+            loadAsync(() -> "loaded", (value) -> loaded = value);
+            count = loadAsync(() -> 42);
+        }
+    }
+
+    @Test
+    public void testChildrenAreBuiltConcurrently() throws Exception
+    {
+        Parent parent = new Parent();
+        parent.build(exchange.request, exchange.response);
+        exchange.response.joinForks();
+
+        assertFalse(exchange.response.hasExceptions(), () -> exchange.response.getExceptions().toString());
+        assertSame(exchange.request, parent.first.request);
+        assertSame(exchange.request, parent.second.request);
+
+        // Forks of forks are joined as well.
+        assertSame(exchange.request, parent.first.grandchild.request);
+        assertSame(exchange.request, parent.second.grandchild.request);
+
+        assertEquals("loaded", parent.loaded);
+        assertEquals(42, parent.count.get());
+    }
+
+    @Test
+    public void testFailuresAreAddedToTheResponse() throws Exception
+    {
+        IllegalStateException failure = new IllegalStateException();
+        Data parent = new Data()
+        {
+            @Override
+            public void build(OXORequest request, OXOResponse response)
+            {
+                loadAsync(() ->
+                {
+                    throw failure;
+                });
+                loadAsync(() -> "loaded");
+            }
+        };
+
+        parent.build(exchange.request, exchange.response);
+        exchange.response.joinForks();
+
+        assertTrue(exchange.response.hasExceptions());
+        assertEquals(1, exchange.response.getExceptions().size());
+        assertSame(failure, exchange.response.getExceptions().get(0));
+    }
+
+    @Test
+    public void testForksRunInlineWithoutAnExecutor() throws Exception
+    {
+        exchange.response.setBuildExecutor(null);
+
+        Thread thread = Thread.currentThread();
+        Data parent = new Data()
+        {
+            @Override
+            public void build(OXORequest request, OXOResponse response)
+            {
+                loadAsync(() -> Thread.currentThread(), (buildThread) -> assertSame(thread, buildThread));
+            }
+        };
+
+        parent.build(exchange.request, exchange.response);
+        exchange.response.joinForks();
+        assertFalse(exchange.response.hasExceptions());
+    }
+
+    @Test
+    public void testOnlyWhileBuilding()
+    {
+        OXOContext.clear();
+
+        assertThrows(IllegalStateException.class, () -> new Parent().build(exchange.request, exchange.response));
+    }
+}
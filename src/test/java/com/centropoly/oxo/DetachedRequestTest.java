@@ -0,0 +1,98 @@
+package com.centropoly.oxo;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Paul van der Maas
+ */
+public class DetachedRequestTest
+{
+    private final HttpServletRequest request = ServletMocks.request("page=1&sort=name", Map.of(
+            "Accept-Encoding", "gzip",
+            "User-Agent", "test",
+            "Cookie", "JSESSIONID=session",
+            "If-None-Match", "\"tag\"",
+            "If-Modified-Since", "Thu, 01 Jan 2026 00:00:00 GMT"));
+
+    @Test
+    public void testRequestIsCopied()
+    {
+        request.setAttribute("attribute", "value");
+        DetachedRequest detachedRequest = new DetachedRequest(request, Locale.ENGLISH);
+
+        // Changes to the original request no longer matter.
+        request.setAttribute("attribute", "changed");
+        request.setAttribute("other", "value");
+
+        assertEquals("GET", detachedRequest.getMethod());
+        assertEquals("/page", detachedRequest.getServletPath());
+        assertEquals("page=1&sort=name", detachedRequest.getQueryString());
+        assertEquals("name", detachedRequest.getParameter("sort"));
+        assertEquals("value", detachedRequest.getAttribute("attribute"));
+        assertNull(detachedRequest.getAttribute("other"));
+
+        assertEquals("gzip", detachedRequest.getHeader("accept-encoding"));
+        assertEquals("test", detachedRequest.getHeader("User-Agent"));
+    }
+
+    @Test
+    public void testConditionalHeadersAndCookiesAreNotCopied()
+    {
+        DetachedRequest detachedRequest = new DetachedRequest(request, Locale.ENGLISH);
+
+        assertNull(detachedRequest.getHeader("If-None-Match"));
+        assertNull(detachedRequest.getHeader("If-Modified-Since"));
+        assertEquals(-1, detachedRequest.getDateHeader("If-Modified-Since"));
+        assertNull(detachedRequest.getHeader("Cookie"));
+        assertNull(detachedRequest.getCookies());
+        assertEquals(List.of("accept-encoding", "user-agent"), Collections.list(detachedRequest.getHeaderNames()).stream().sorted().toList());
+    }
+
+    @Test
+    public void testSessionIsItsOwn()
+    {
+        HttpSession clientSession = request.getSession();
+        clientSession.setAttribute("preferences", "client");
+
+        DetachedRequest detachedRequest = new DetachedRequest(request, Locale.ENGLISH);
+        assertNull(detachedRequest.getRequestedSessionId());
+        assertFalse(detachedRequest.isRequestedSessionIdValid());
+        assertNull(detachedRequest.getSession(false));
+
+        HttpSession session = detachedRequest.getSession();
+        assertNotNull(session);
+        assertNotSame(clientSession, session);
+        assertSame(session, detachedRequest.getSession(false));
+        assertNull(session.getAttribute("preferences"));
+
+        session.setAttribute("preferences", "detached");
+        assertEquals("client", clientSession.getAttribute("preferences"));
+
+        // A new one once invalidated.
+        session.invalidate();
+        assertNull(detachedRequest.getSession(false));
+        HttpSession newSession = detachedRequest.getSession(true);
+        assertNotSame(session, newSession);
+        assertNull(newSession.getAttribute("preferences"));
+        assertNotEquals(session.getId(), newSession.getId());
+    }
+
+    @Test
+    public void testLocaleComesFirst()
+    {
+        DetachedRequest detachedRequest = new DetachedRequest(request, Locale.FRENCH);
+
+        assertEquals(Locale.FRENCH, detachedRequest.getLocale());
+        assertEquals(List.of(Locale.FRENCH, Locale.ENGLISH), Collections.list(detachedRequest.getLocales()));
+
+        detachedRequest = new DetachedRequest(request, Locale.ENGLISH);
+        assertEquals(List.of(Locale.ENGLISH), Collections.list(detachedRequest.getLocales()));
+    }
+}
@@ -0,0 +1,129 @@
+package com.centropoly.oxo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Paul van der Maas
+ */
+public class DiskCacheTest
+{
+    @TempDir
+    File directory;
+
+    @Test
+    public void testResponsesSurviveARestart()
+    {
+        DiskCache diskCache = new DiskCache(directory, 1024);
+        put(diskCache, "a", "first", Set.of("product:1"));
+        diskCache.close();
+
+        diskCache = new DiskCache(directory, 1024);
+        DiskCache.Entry entry = diskCache.get("a");
+        assertNotNull(entry);
+        assertEquals("first", read(diskCache, entry));
+        assertEquals("text/html", entry.contentType);
+        assertEquals("UTF-8", entry.characterEncoding);
+        assertNull(entry.contentEncoding);
+        assertEquals("\"a\"", entry.eTag);
+        assertEquals(Set.of("product:1"), entry.tags);
+        assertEquals("/page", entry.path);
+        diskCache.close();
+    }
+
+    @Test
+    public void testTruncatedRecordIsDiscarded() throws IOException
+    {
+        File indexFile = new File(directory, "index");
+
+        DiskCache diskCache = new DiskCache(directory, 1024);
+        put(diskCache, "a", "first", Collections.emptySet());
+        diskCache.close();
+        long length = indexFile.length();
+
+        diskCache = new DiskCache(directory, 1024);
+        put(diskCache, "b", "second", Collections.emptySet());
+        diskCache.close();
+
+        // As if the process died while the record of the second response was being written.
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw"))
+        {
+            index.setLength(length + (index.length() - length) / 2);
+        }
+
+        diskCache = new DiskCache(directory, 1024);
+        assertEquals("first", read(diskCache, diskCache.get("a")));
+        assertNull(diskCache.get("b"));
+        assertEquals(1, diskCache.size());
+
+        // The body of the unindexed response is deleted, and the index can be appended to again.
+        assertEquals(2, directory.list().length);
+        put(diskCache, "c", "third", Collections.emptySet());
+        diskCache.close();
+
+        diskCache = new DiskCache(directory, 1024);
+        assertEquals("first", read(diskCache, diskCache.get("a")));
+        assertEquals("third", read(diskCache, diskCache.get("c")));
+        assertEquals(2, diskCache.size());
+        diskCache.close();
+    }
+
+    @Test
+    public void testRemovalsAreReplayed()
+    {
+        DiskCache diskCache = new DiskCache(directory, 1024);
+        put(diskCache, "a", "first", Set.of("product:1"));
+        put(diskCache, "b", "second", Set.of("product:2"));
+        put(diskCache, "c", "third", Set.of("product:2"));
+        diskCache.remove("a");
+        assertEquals(1, diskCache.removeIf((entry) -> entry.key.equals("c")));
+        diskCache.close();
+
+        diskCache = new DiskCache(directory, 1024);
+        assertNull(diskCache.get("a"));
+        assertEquals("second", read(diskCache, diskCache.get("b")));
+        assertNull(diskCache.get("c"));
+        assertEquals(1, diskCache.size());
+        diskCache.close();
+    }
+
+    @Test
+    public void testSizeIsBounded()
+    {
+        DiskCache diskCache = new DiskCache(directory, 10);
+        put(diskCache, "a", "12345", Collections.emptySet());
+        put(diskCache, "b", "12345", Collections.emptySet());
+        put(diskCache, "c", "12345", Collections.emptySet());
+        assertNull(diskCache.get("a"));
+        assertNotNull(diskCache.get("b"));
+        assertNotNull(diskCache.get("c"));
+
+        // Never fits.
+        put(diskCache, "d", "12345678901", Collections.emptySet());
+        assertNull(diskCache.get("d"));
+        assertEquals(2, diskCache.size());
+        diskCache.close();
+    }
+
+    private static void put(DiskCache diskCache, String key, String body, Set<String> tags)
+    {
+        CachedOutputStream outputStream = new CachedOutputStream(ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)), "text/html", "UTF-8", '"' + key + '"');
+        diskCache.put(key, outputStream, null, outputStream.getETag(), System.currentTimeMillis(), tags, null, "/page");
+    }
+
+    private static String read(DiskCache diskCache, DiskCache.Entry entry)
+    {
+        ByteBuffer body = diskCache.map(entry);
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,121 @@
+package com.centropoly.oxo;
+
+import com.centropoly.oxo.CachedResponseManager.CachedResponse;
+import com.centropoly.oxo.CachedResponseManagerTest.Exchange;
+import com.centropoly.oxo.CachedResponseManagerTest.TaggedData;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Paul van der Maas
+ */
+public class LocalInvalidationBusTest
+{
+    @Test
+    public void testEventsAreDeliveredToTheOtherBusesOfTheGroup()
+    {
+        String group = UUID.randomUUID().toString();
+        LocalInvalidationBus first = new LocalInvalidationBus(group);
+        LocalInvalidationBus second = new LocalInvalidationBus(group);
+        LocalInvalidationBus other = new LocalInvalidationBus(UUID.randomUUID().toString());
+        try
+        {
+            List<InvalidationEvent> firstEvents = subscribe(first);
+            List<InvalidationEvent> secondEvents = subscribe(second);
+            List<InvalidationEvent> otherEvents = subscribe(other);
+
+            first.publish(new InvalidationEvent(InvalidationEvent.Type.TAG, "product:1", first.getNodeId()));
+
+            assertTrue(firstEvents.isEmpty());
+            assertTrue(otherEvents.isEmpty());
+            assertEquals(1, secondEvents.size());
+            InvalidationEvent event = secondEvents.get(0);
+            assertEquals(InvalidationEvent.Type.TAG, event.getType());
+            assertEquals("product:1", event.getValue());
+            assertEquals(first.getNodeId(), event.getOrigin());
+            assertNotEquals(first.getNodeId(), second.getNodeId());
+
+            // And back.
+            second.publish(new InvalidationEvent(InvalidationEvent.Type.ALL, null, second.getNodeId()));
+            assertEquals(1, firstEvents.size());
+            assertEquals(InvalidationEvent.Type.ALL, firstEvents.get(0).getType());
+            assertEquals(1, secondEvents.size());
+
+            // Closed buses no longer receive events.
+            second.close();
+            first.publish(new InvalidationEvent(InvalidationEvent.Type.KEY, "key", first.getNodeId()));
+            assertEquals(1, secondEvents.size());
+        }
+        finally
+        {
+            first.close();
+            second.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void testInvalidationsRoundTrip() throws IOException
+    {
+        String group = UUID.randomUUID().toString();
+        CachedResponseManager cachedResponseManager = new CachedResponseManager();
+        CacheInvalidator.register(cachedResponseManager);
+
+        // This node, and another one.
+        LocalInvalidationBus bus = new LocalInvalidationBus(group);
+        LocalInvalidationBus otherBus = new LocalInvalidationBus(group);
+        try
+        {
+            CacheInvalidator.setInvalidationBus(bus);
+            List<InvalidationEvent> otherEvents = subscribe(otherBus);
+
+            // Invalidations on this node are broadcast.
+            cache(cachedResponseManager, "page=1", new TaggedData("product:1"));
+            assertEquals(1, CacheInvalidator.invalidateTag("product:1"));
+            assertEquals(0, cachedResponseManager.size());
+            assertEquals(1, otherEvents.size());
+            assertEquals(InvalidationEvent.Type.TAG, otherEvents.get(0).getType());
+            assertEquals("product:1", otherEvents.get(0).getValue());
+            assertEquals(bus.getNodeId(), otherEvents.get(0).getOrigin());
+
+            // Invalidations on the other node are applied here.
+            cache(cachedResponseManager, "page=2", new TaggedData("product:2"));
+            cache(cachedResponseManager, "page=3", new TaggedData("product:3"));
+            otherBus.publish(new InvalidationEvent(InvalidationEvent.Type.TAG, "product:2", otherBus.getNodeId()));
+            assertEquals(1, cachedResponseManager.size());
+
+            otherBus.publish(new InvalidationEvent(InvalidationEvent.Type.ALL, null, otherBus.getNodeId()));
+            assertEquals(0, cachedResponseManager.size());
+
+            // Not broadcast back.
+            assertEquals(1, otherEvents.size());
+        }
+        finally
+        {
+            CacheInvalidator.unregister(cachedResponseManager);
+            CacheInvalidator.setInvalidationBus(null);
+            otherBus.close();
+        }
+    }
+
+    private static List<InvalidationEvent> subscribe(InvalidationBus invalidationBus)
+    {
+        List<InvalidationEvent> events = new CopyOnWriteArrayList<>();
+        invalidationBus.subscribe(events::add);
+        return events;
+    }
+
+    private static void cache(CachedResponseManager cachedResponseManager, String queryString, Data data) throws IOException
+    {
+        Exchange exchange = new Exchange(queryString);
+        exchange.response.setData(data);
+
+        CachedResponse cachedResponse = cachedResponseManager.createCachedResponse(exchange.request, exchange.response);
+        CachedResponseManagerTest.write(cachedResponse.outputStream, queryString);
+        cachedResponseManager.completeCachedResponse(exchange.request, exchange.response, cachedResponse.outputStream);
+    }
+}
@@ -0,0 +1,223 @@
+package com.centropoly.oxo;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncEvent;
+import javax.servlet.ServletException;
+import static org.junit.jupiter.api.Assertions.*;
+import org.joda.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Paul van der Maas
+ */
+public class OXOServletTest
+{
+    private ItemService itemService;
+
+    public static class Item extends Data
+    {
+        public String name = "item";
+
+        @Override
+        public void build(OXORequest request, OXOResponse response)
+        {
+        }
+    }
+
+    public static class CachedItem extends Item
+    {
+        @Override
+        public Duration getExpirationDuration()
+        {
+            return Duration.standardMinutes(1);
+        }
+    }
+
+    public static class ItemService extends WebService
+    {
+        // The request that times out while it is being processed.
+        volatile ServletMocks.Async timingOut;
+
+        public Data item()
+        {
+            return new Item();
+        }
+
+        public Data cachedItem()
+        {
+            return new CachedItem();
+        }
+
+        public Data timedOutItem() throws IOException
+        {
+            timeOut();
+            return new Item();
+        }
+
+        public Data timedOutFailure() throws IOException
+        {
+            timeOut();
+            throw new IllegalStateException();
+        }
+
+        private void timeOut() throws IOException
+        {
+            timingOut.listeners.get(0).onTimeout(new AsyncEvent(timingOut.asyncContext));
+        }
+    }
+
+    private void init(Map<String, String> parameters) throws ServletException
+    {
+        parameters.put("templatesPackage", "templates");
+        parameters.put("propertiesPackage", "templates");
+        parameters.put("servletsPackage", "servlets");
+
+        itemService = new ItemService();
+        itemService.init(ServletMocks.config(parameters));
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        if (itemService != null)
+        {
+            itemService.destroy();
+        }
+    }
+
+    @Test
+    public void testUncachedResponseIsRevalidated() throws Exception
+    {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("etag", "true");
+        init(parameters);
+
+        assertRevalidated("serviceIdentifier=item", Map.of());
+    }
+
+    @Test
+    public void testCachedResponseIsRevalidated() throws Exception
+    {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("cacheCompression", "gzip");
+        init(parameters);
+
+        assertRevalidated("serviceIdentifier=cachedItem", Map.of());
+
+        // The compressed variant has an entity tag of its own.
+        ServletMocks.Output identity = get("serviceIdentifier=cachedItem", Map.of());
+        ServletMocks.Output gzip = assertRevalidated("serviceIdentifier=cachedItem", Map.of("Accept-Encoding", "gzip"));
+        assertEquals("gzip", gzip.headers.get("Content-Encoding"));
+        assertNotEquals(identity.headers.get("ETag"), gzip.headers.get("ETag"));
+
+        // Both variants have the same content, a client that has either need not get the other.
+        ServletMocks.Output output = get("serviceIdentifier=cachedItem", Map.of("If-None-Match", gzip.headers.get("ETag")));
+        assertEquals(304, output.status);
+        assertEquals(identity.headers.get("ETag"), output.headers.get("ETag"));
+    }
+
+    @Test
+    public void testAsyncResponseIsCompletedOnce() throws Exception
+    {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("async", "true");
+        parameters.put("etag", "true");
+        init(parameters);
+
+        // Uncached, primed and from the cache.
+        String[] queryStrings = { "serviceIdentifier=item", "serviceIdentifier=cachedItem", "serviceIdentifier=cachedItem" };
+        for (String queryString : queryStrings)
+        {
+            ServletMocks.Async async = new ServletMocks.Async();
+            ServletMocks.Output output = new ServletMocks.Output();
+            itemService.service(ServletMocks.request(queryString, Map.of(), async.asyncContext), ServletMocks.response(output));
+
+            assertEquals(200, output.status);
+            assertNotNull(output.headers.get("ETag"));
+            assertArrayEquals(get(queryString, Map.of()).body.toByteArray(), output.body.toByteArray());
+            assertEquals(1, async.completions);
+        }
+    }
+
+    @Test
+    public void testProcessingOnOtherThreads() throws Exception
+    {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("virtualThreads", "true");
+        init(parameters);
+
+        ServletMocks.Async async = new ServletMocks.Async();
+        ServletMocks.Output output = new ServletMocks.Output();
+        itemService.service(ServletMocks.request("serviceIdentifier=item", Map.of(), async.asyncContext), ServletMocks.response(output));
+
+        assertTrue(async.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(200, output.status);
+        synchronized (output)
+        {
+            assertArrayEquals(get("serviceIdentifier=item", Map.of()).body.toByteArray(), output.body.toByteArray());
+        }
+        assertEquals(1, async.completions);
+    }
+
+    @Test
+    public void testNothingIsWrittenOnceTimedOut() throws Exception
+    {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("async", "true");
+        init(parameters);
+
+        for (String queryString : new String[] { "serviceIdentifier=timedOutItem", "serviceIdentifier=timedOutFailure" })
+        {
+            ServletMocks.Async async = new ServletMocks.Async();
+            ServletMocks.Output output = new ServletMocks.Output();
+            itemService.timingOut = async;
+            itemService.service(ServletMocks.request(queryString, Map.of(), async.asyncContext), ServletMocks.response(output));
+
+            // The container completes it.
+            assertEquals(0, output.body.size(), queryString);
+            assertNull(output.contentType, queryString);
+            assertEquals(0, async.completions, queryString);
+        }
+    }
+
+    // Assert that the response to the given request can be revalidated, and return it.
+    private ServletMocks.Output assertRevalidated(String queryString, Map<String, String> headers) throws Exception
+    {
+        ServletMocks.Output output = get(queryString, headers);
+        String eTag = output.headers.get("ETag");
+        assertEquals(200, output.status);
+        assertNotNull(eTag);
+        assertTrue(eTag.startsWith("\""));
+        assertTrue(output.body.size() > 0);
+
+        for (String ifNoneMatch : new String[] { eTag, "\"other\", " + eTag, "*" })
+        {
+            Map<String, String> conditionalHeaders = new HashMap<>(headers);
+            conditionalHeaders.put("If-None-Match", ifNoneMatch);
+
+            ServletMocks.Output notModified = get(queryString, conditionalHeaders);
+            assertEquals(304, notModified.status, ifNoneMatch);
+            assertEquals(0, notModified.body.size());
+            assertEquals(eTag, notModified.headers.get("ETag"));
+        }
+
+        Map<String, String> conditionalHeaders = new HashMap<>(headers);
+        conditionalHeaders.put("If-None-Match", "\"other\"");
+        ServletMocks.Output modified = get(queryString, conditionalHeaders);
+        assertEquals(200, modified.status);
+        assertArrayEquals(output.body.toByteArray(), modified.body.toByteArray());
+
+        return output;
+    }
+
+    private ServletMocks.Output get(String queryString, Map<String, String> headers) throws Exception
+    {
+        ServletMocks.Output output = new ServletMocks.Output();
+        itemService.service(ServletMocks.request(queryString, headers), ServletMocks.response(output));
+        return output;
+    }
+}
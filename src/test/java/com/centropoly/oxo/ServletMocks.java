@@ -0,0 +1,353 @@
+package com.centropoly.oxo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Minimal servlet API stand-ins for tests, without a container.
+ *
+ * @author Paul van der Maas
+ */
+final class ServletMocks
+{
+    private ServletMocks()
+    {
+    }
+
+    /**
+     * A GET request for /page with the given query string and headers.
+     */
+    static HttpServletRequest request(String queryString, Map<String, String> headers)
+    {
+        return request(queryString, headers, null);
+    }
+
+    /**
+     * A GET request for /page with the given query string and headers, that supports
+     * asynchronous processing if an async context is given.
+     */
+    static HttpServletRequest request(String queryString, Map<String, String> headers, AsyncContext asyncContext)
+    {
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        HttpSession session = session();
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, (proxy, method, arguments) ->
+        {
+            switch (method.getName())
+            {
+                case "getMethod":
+                    return "GET";
+                case "getScheme":
+                    return "http";
+                case "getProtocol":
+                    return "HTTP/1.1";
+                case "getServerName":
+                    return "localhost";
+                case "getServerPort":
+                    return 80;
+                case "getContextPath":
+                    return "";
+                case "getServletPath":
+                    return "/page";
+                case "getRequestURI":
+                    return "/page";
+                case "getRequestURL":
+                    return new StringBuffer("http://localhost/page");
+                case "getQueryString":
+                    return queryString;
+                case "getParameter":
+                    String[] values = parameters(queryString).get((String) arguments[0]);
+                    return (values != null) ? values[0] : null;
+                case "getParameterValues":
+                    return parameters(queryString).get((String) arguments[0]);
+                case "getParameterMap":
+                    return parameters(queryString);
+                case "getParameterNames":
+                    return Collections.enumeration(parameters(queryString).keySet());
+                case "getHeader":
+                    return headers.get((String) arguments[0]);
+                case "getHeaders":
+                    String header = headers.get((String) arguments[0]);
+                    return Collections.enumeration((header != null) ? List.of(header) : List.of());
+                case "getHeaderNames":
+                    return Collections.enumeration(headers.keySet());
+                case "getDateHeader":
+                    return -1L;
+                case "getLocale":
+                    return Locale.ENGLISH;
+                case "getLocales":
+                    return Collections.enumeration(List.of(Locale.ENGLISH));
+                case "getAttribute":
+                    return attributes.get((String) arguments[0]);
+                case "setAttribute":
+                    if (arguments[1] == null)
+                    {
+                        attributes.remove((String) arguments[0]);
+                    }
+                    else
+                    {
+                        attributes.put((String) arguments[0], arguments[1]);
+                    }
+                    return null;
+                case "removeAttribute":
+                    attributes.remove((String) arguments[0]);
+                    return null;
+                case "getAttributeNames":
+                    return Collections.enumeration(attributes.keySet());
+                case "getSession":
+                    return session;
+                case "isAsyncSupported":
+                    return asyncContext != null;
+                case "startAsync":
+                    return asyncContext;
+                default:
+                    return defaultValue(proxy, method, arguments);
+            }
+        });
+    }
+
+    private static HttpSession session()
+    {
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        return (HttpSession) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[] { HttpSession.class }, (proxy, method, arguments) ->
+        {
+            switch (method.getName())
+            {
+                case "getId":
+                    return "session";
+                case "getAttribute":
+                    return attributes.get((String) arguments[0]);
+                case "setAttribute":
+                    attributes.put((String) arguments[0], arguments[1]);
+                    return null;
+                case "removeAttribute":
+                    attributes.remove((String) arguments[0]);
+                    return null;
+                default:
+                    return defaultValue(proxy, method, arguments);
+            }
+        });
+    }
+
+    /**
+     * The configuration of a servlet with the given context parameters.
+     */
+    static ServletConfig config(Map<String, String> parameters)
+    {
+        ServletContext servletContext = (ServletContext) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[] { ServletContext.class }, (proxy, method, arguments) ->
+        {
+            switch (method.getName())
+            {
+                case "getInitParameter":
+                    return parameters.get((String) arguments[0]);
+                case "getInitParameterNames":
+                    return Collections.enumeration(parameters.keySet());
+                default:
+                    return defaultValue(proxy, method, arguments);
+            }
+        });
+
+        return (ServletConfig) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[] { ServletConfig.class }, (proxy, method, arguments) ->
+        {
+            switch (method.getName())
+            {
+                case "getServletContext":
+                    return servletContext;
+                case "getServletName":
+                    return "test";
+                case "getInitParameterNames":
+                    return Collections.emptyEnumeration();
+                default:
+                    return defaultValue(proxy, method, arguments);
+            }
+        });
+    }
+
+    private static Map<String, String[]> parameters(String queryString)
+    {
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        if (queryString != null)
+        {
+            for (String parameter : queryString.split("&"))
+            {
+                String[] nameAndValue = parameter.split("=", 2);
+                parameters.put(nameAndValue[0], new String[] { (nameAndValue.length > 1) ? nameAndValue[1] : "" });
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * What was written to a response.
+     */
+    static final class Output
+    {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final Map<String, String> headers = new HashMap<>();
+        volatile int status = HttpServletResponse.SC_OK;
+        volatile String contentType;
+        volatile String characterEncoding;
+    }
+
+    static HttpServletResponse response(Output output)
+    {
+        ServletOutputStream outputStream = new ServletOutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                synchronized (output)
+                {
+                    output.body.write(b);
+                }
+            }
+
+            @Override
+            public boolean isReady()
+            {
+                return true;
+            }
+
+            // The client takes everything at once.
+            @Override
+            public void setWriteListener(WriteListener writeListener)
+            {
+                try
+                {
+                    writeListener.onWritePossible();
+                }
+                catch (IOException exception)
+                {
+                    writeListener.onError(exception);
+                }
+            }
+        };
+
+        return (HttpServletResponse) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, (proxy, method, arguments) ->
+        {
+            switch (method.getName())
+            {
+                case "getOutputStream":
+                    return outputStream;
+                case "setHeader":
+                case "addHeader":
+                case "setDateHeader":
+                case "addDateHeader":
+                case "setIntHeader":
+                case "addIntHeader":
+                    synchronized (output)
+                    {
+                        output.headers.put((String) arguments[0], String.valueOf(arguments[1]));
+                    }
+                    return null;
+                case "getHeader":
+                    synchronized (output)
+                    {
+                        return output.headers.get((String) arguments[0]);
+                    }
+                case "containsHeader":
+                    synchronized (output)
+                    {
+                        return output.headers.containsKey((String) arguments[0]);
+                    }
+                case "setContentLength":
+                case "setContentLengthLong":
+                    synchronized (output)
+                    {
+                        output.headers.put("Content-Length", String.valueOf(arguments[0]));
+                    }
+                    return null;
+                case "setStatus":
+                case "sendError":
+                    output.status = (Integer) arguments[0];
+                    return null;
+                case "getStatus":
+                    return output.status;
+                case "setContentType":
+                    output.contentType = (String) arguments[0];
+                    return null;
+                case "getContentType":
+                    return output.contentType;
+                case "setCharacterEncoding":
+                    output.characterEncoding = (String) arguments[0];
+                    return null;
+                case "getCharacterEncoding":
+                    return output.characterEncoding;
+                default:
+                    return defaultValue(proxy, method, arguments);
+            }
+        });
+    }
+
+    /**
+     * An async context that records whether it was completed and lets tests fire its listeners.
+     */
+    static final class Async
+    {
+        final List<AsyncListener> listeners = new ArrayList<>();
+        volatile int completions = 0;
+        final CountDownLatch completed = new CountDownLatch(1);
+        final AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[] { AsyncContext.class }, (proxy, method, arguments) ->
+        {
+            switch (method.getName())
+            {
+                case "addListener":
+                    listeners.add((AsyncListener) arguments[0]);
+                    return null;
+                case "complete":
+                    completions++;
+                    completed.countDown();
+                    return null;
+                default:
+                    return defaultValue(proxy, method, arguments);
+            }
+        });
+    }
+
+    private static Object defaultValue(Object proxy, Method method, Object[] arguments)
+    {
+        switch (method.getName())
+        {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == arguments[0];
+            case "toString":
+                return method.getDeclaringClass().getSimpleName();
+        }
+
+        Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class)
+        {
+            return false;
+        }
+        else if (returnType == int.class)
+        {
+            return 0;
+        }
+        else if (returnType == long.class)
+        {
+            return 0L;
+        }
+        return null;
+    }
+}